@@ -0,0 +1,293 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Layout of the binary trace format.
+ * The file starts with a 16 byte header, the magic number, a version byte, a flags byte, two reserved bytes, and the number of records as a long.
+ * Each record is then a one byte header holding the access type in bit 0 and the size in bits 1 to 7,
+ * followed by the difference from the previous record's address as a zigzag encoded varint.
+ * Sizes that do not fit in 7 bits are marked with SIZE_ESCAPE and follow the header as a varint.
+ * When the CORES flag is set, as for multi-core traces, each record ends with the core making the access as a varint.
+ * Version 1 files have no flags.
+ */
+final class BinaryTraceFormat {
+    static final int MAGIC = 0x43534254;    // "CSBT"
+    static final byte VERSION = 2;
+    static final int HEADER_SIZE = 16;
+    static final int COUNT_OFFSET = 8;      // Where the record count sits in the header
+    static final int MAX_RECORD_SIZE = 1 + 10 + 5 + 5;
+    static final byte CORES = 1;            // Flag for records ending with their core
+    static final int SIZE_ESCAPE = 0x7F;
+    static final long UNKNOWN_COUNT = -1;   // Written until the writer is closed, readers then read up to the end of the file
+
+    private BinaryTraceFormat() {
+    }
+
+    /**
+     * Checks the first bytes of a file for the magic number of the binary format
+     * @param path  The path of the trace file
+     * @return      Whether the file is a binary trace
+     */
+    static boolean isBinaryTrace(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // reading until the magic number is complete or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+}
+
+/**
+ * Writes accesses out in the binary trace format through a buffered file channel
+ */
+class BinaryTraceWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long previousAddress;   // The address of the last record written, records store their address relative to this
+    private long count;             // The number of records written
+    private final boolean cores;    // Whether records end with their core
+
+    /**
+     * Creates the file at the given path, replacing any existing file, and writes the header
+     * @param path  The path of the binary trace to create
+     * @param cores Whether to keep the core making each access, for multi-core traces
+     */
+    public BinaryTraceWriter(String path, boolean cores) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.BIG_ENDIAN);
+        this.cores = cores;
+        this.buffer.putInt(BinaryTraceFormat.MAGIC);
+        this.buffer.put(BinaryTraceFormat.VERSION);
+        this.buffer.put(cores ? BinaryTraceFormat.CORES : 0);
+        this.buffer.putShort((short) 0);
+        this.buffer.putLong(BinaryTraceFormat.UNKNOWN_COUNT);
+    }
+
+    /**
+     * Appends a single access to the trace
+     * @param address   The memory address of the access
+     * @param size      The number of bytes accessed
+     * @param write     Whether the access is a write
+     * @param core      The core making the access, only kept when the writer keeps cores
+     */
+    public void write(long address, int size, boolean write, int core) throws IOException {
+        if (this.buffer.remaining() < BinaryTraceFormat.MAX_RECORD_SIZE) {
+            this.flush();
+        }
+        int type = write ? 1 : 0;
+        if (size >= 0 && size < BinaryTraceFormat.SIZE_ESCAPE) {
+            this.buffer.put((byte) (size << 1 | type));
+        }
+        else {
+            this.buffer.put((byte) (BinaryTraceFormat.SIZE_ESCAPE << 1 | type));
+            this.putVarint(size & 0xFFFFFFFFL);
+        }
+        long delta = address - this.previousAddress;
+        this.putVarint(delta << 1 ^ delta >> 63);   // zigzag encoding so that small negative deltas stay small
+        if (this.cores) {
+            this.putVarint(core & 0xFFFFFFFFL);
+        }
+        this.previousAddress = address;
+        this.count++;
+    }
+
+    /**
+     * Writes a value seven bits at a time, the top bit of each byte marking whether more bytes follow
+     * @param value The value to write, treated as unsigned
+     */
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            this.buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        this.buffer.put((byte) value);
+    }
+
+    /**
+     * Writes out everything that has been buffered so far
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Returns the number of records written so far
+     * @return A long
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Flushes the remaining records and fills in the record count in the header
+     */
+    public void close() throws IOException {
+        this.flush();
+        ByteBuffer count = ByteBuffer.allocate(Long.BYTES);
+        count.putLong(0, this.count);
+        this.channel.write(count, BinaryTraceFormat.COUNT_OFFSET);
+        this.channel.close();
+    }
+}
+
+/**
+ * Streams accesses out of a binary trace, decoding the records straight from a direct buffer that is refilled from the file channel,
+ * or from a pipe when the trace is streamed
+ */
+class BinaryTraceReader extends TraceReader {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long count;             // The number of records in the trace, negative if the count was never filled in
+    private long remaining;         // The number of records left to read, negative if the count was never filled in
+    private boolean endOfFile;      // Whether the whole file has been read into the buffer
+    private boolean cores;          // Whether records end with their core
+
+    /**
+     * Opens the given binary trace and checks its header
+     * @param path  The path of the trace file
+     */
+    public BinaryTraceReader(String path) throws IOException {
+        this(FileChannel.open(Paths.get(path), StandardOpenOption.READ), ByteBuffer.allocate(0), path);
+    }
+
+    /**
+     * Reads a binary trace from a channel, such as a pipe, and checks its header
+     * @param channel   The channel
+     * @param head      Bytes already read from the start of the channel
+     * @param path      The path of the trace, for errors
+     */
+    public BinaryTraceReader(ReadableByteChannel channel, ByteBuffer head, String path) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(1 << 20);
+        this.buffer.put(head);
+        this.buffer.flip();
+        this.fill();
+        if (this.buffer.remaining() < BinaryTraceFormat.HEADER_SIZE || this.buffer.getInt() != BinaryTraceFormat.MAGIC) {
+            throw new IOException(path + " is not a binary trace");
+        }
+        byte version = this.buffer.get();
+        if (version < 1 || version > BinaryTraceFormat.VERSION) {
+            throw new IOException("Unsupported binary trace version " + version);
+        }
+        byte flags = this.buffer.get();
+        if ((flags & ~BinaryTraceFormat.CORES) != 0 || version == 1 && flags != 0) {
+            throw new IOException("Unsupported binary trace flags " + flags);
+        }
+        this.cores = (flags & BinaryTraceFormat.CORES) != 0;
+        this.buffer.getShort(); // reserved
+        this.count = this.buffer.getLong();
+        this.remaining = this.count;
+        this.address = 0;
+    }
+
+    /**
+     * Tops up the buffer from the file, keeping any bytes that have not been decoded yet
+     */
+    private void fill() throws IOException {
+        this.buffer.compact();
+        while (this.buffer.hasRemaining()) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.endOfFile = true;
+                break;
+            }
+        }
+        this.buffer.flip();
+    }
+
+    /**
+     * Decodes the next record into the address, size, and access type of the current access
+     * @return Whether there was another access
+     */
+    public boolean next() throws IOException {
+        if (this.remaining == 0) {
+            return false;
+        }
+        ByteBuffer buf = this.buffer;
+        if (buf.remaining() < BinaryTraceFormat.MAX_RECORD_SIZE && !this.endOfFile) {
+            this.fill();
+        }
+        if (!buf.hasRemaining()) {
+            if (this.remaining > 0) {
+                throw new EOFException("Binary trace ended " + this.remaining + " records early");
+            }
+            return false;
+        }
+        int header = buf.get() & 0xFF;
+        this.write = (header & 1) != 0;
+        int size = header >>> 1;
+        if (size == BinaryTraceFormat.SIZE_ESCAPE) {
+            size = (int) this.getVarint(buf);
+        }
+        long delta = this.getVarint(buf);
+        this.address += delta >>> 1 ^ -(delta & 1);
+        this.size = size;
+        if (this.cores) {
+            this.core = (int) this.getVarint(buf);
+        }
+        this.remaining--;
+        return true;
+    }
+
+    public long getOffset() throws IOException {
+        return this.file().position() - this.buffer.remaining();
+    }
+
+    public long length() throws IOException {
+        return this.file().size();
+    }
+
+    public void seek(long offset, long address, long accesses) throws IOException {
+        this.file().position(offset);
+        this.buffer.clear().flip();
+        this.endOfFile = false;
+        this.address = address;
+        this.remaining = this.count < 0 ? this.count : this.count - accesses;
+    }
+
+    /**
+     * Reads a value written by BinaryTraceWriter.putVarint
+     * @param buf   The buffer to read from
+     * @return      The decoded value
+     */
+    private long getVarint(ByteBuffer buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new EOFException("Binary trace ends part way through a record");
+            }
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in binary trace");
+    }
+
+    /**
+     * Returns the file being read, for the methods needing to know where in the file the reader is
+     * @return The file channel
+     */
+    private FileChannel file() throws IOException {
+        if (!(this.channel instanceof FileChannel)) {
+            throw new IOException("A streamed trace cannot be checkpointed");
+        }
+        return (FileChannel) this.channel;
+    }
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -1,23 +1,63 @@
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * Abstract class for caches from which all other caches are based off of
  */
 abstract class Cache {
+    static final byte READ = 0;         // A read, or a fetch of a missed line from the level above
+    static final byte WRITE = 1;        // A write from the trace, or one passed on by a level that does not keep it
+    static final byte WRITE_BACK = 2;   // A dirty line evicted from the level above, which is written whole and so never fetched
+    static final byte INVALID = 0;      // MESI states of a line in a core's private caches, kept in states when coherence is modelled
+    static final byte SHARED = 1;
+    static final byte EXCLUSIVE = 2;
+    static final byte MODIFIED = 3;
+    private static final int POLLUTION_ENTRIES = 1 << 12; // The size of the table of lines evicted by prefetches, a power of two
+
     protected String name;
     protected int size;
     protected int lineSize;
     protected int setCount;
     protected int setSize;
     protected String replacementPolicy;
-    protected int hits;
-    protected int misses;
+    protected long hits;
+    protected long misses;
     protected int offsetBitShift; // the number of bits to be right shifted to remove the offset
     protected int indexMask; // a mask which allows us to keep the index bits only
     protected int tagBitShift; // the number of bits to right shift to arrive at the tag
     protected int tagMask; // a mask which allows us to keep the index bits only
-    protected long[][] entries;  // Key value pair for set indices and tag(s), n sets x m cache lines
+    protected long[] entries;  // The tag(s) of every set laid out one set after another, the tag of cache line i of set n being at n * setSize + i
     protected int[] cacheLinePtr; // Points to a possible next cache line to insert into for a given set
     protected int[] setCapacity; // How many free lines are available for a given set
     protected Cache child; // The next cache in the hierarchy
+    protected Cache parent; // The cache above in the hierarchy, null for the first level
+    protected boolean inclusive; // Whether evictions invalidate the evicted line in every level above, keeping those levels a subset of this one
+    protected boolean holes; // Whether lines can be invalidated out of the middle of a set, so inserts have to look for a free cache line
+    protected boolean victimDirty; // Whether the victim returned by the last call to place was dirty
+    protected long backInvalidations; // The number of lines invalidated because a level below evicted them
+    protected Prefetcher prefetcher; // Suggests lines to load ahead of demand, null for none
+    private long[] prefetched;      // One bit for each entry, set while the entry holds a prefetched line that has not been used yet
+    private long[] pollution;       // Lines evicted by prefetches, plus one so that 0 is empty, hashed into a fixed size table
+    private long[] suggestions;     // The lines suggested by the prefetcher for the current access
+    private long[] pendingLines = new long[0]; // Demand accesses the prefetcher has yet to see, held until the line is filled in every level above
+    private boolean[] pendingTriggers = new boolean[0];
+    private int pending;
+    protected long prefetches;      // The number of lines loaded by the prefetcher
+    protected long usefulPrefetches; // The number of prefetched lines later demanded
+    protected long uselessPrefetches; // The number of prefetched lines evicted without being demanded
+    protected long pollutionMisses; // The number of misses on lines a prefetch had evicted
+    protected CacheStats stats; // Per set counts and miss classification
+    private MissListener[] listeners = new MissListener[0]; // Also given each block passed on to the child by the batched checkCache
+    private long[] missBuffer = new long[0]; // Holds the addresses that missed in a block, to be passed on to the child
+    private byte[] kindBuffer = new byte[0]; // Holds the kind of each access passed on to the child when writes are modelled
+    protected boolean writeBack = true;     // Whether writes stay in the cache until their line is evicted, rather than being written through
+    protected boolean writeAllocate = true; // Whether a write miss loads the line, rather than only being passed on
+    protected long[] dirty;                 // One bit for each entry, set while the entry holds a line written since it was loaded, null unless writes are modelled
+    protected long writeBacks;              // The number of dirty lines evicted
+    protected long readsOut;                // The number of reads passed on to the child, or to main memory for the last level
+    protected long writesOut;               // The number of writes and write backs passed on to the child, or to main memory for the last level
+    protected byte[] states;                // The MESI state of each entry, null unless coherence is modelled
+    protected byte victimState;             // The state of the victim evicted by the last call to fillState
 
     /**
      * Returns the name of the cache
@@ -43,22 +83,81 @@ abstract class Cache {
         return this.lineSize;
     }
 
+    /**
+     * Returns the name of the replacement policy from the cache's config
+     * @return A string, null if none was given
+     */
+    public String getReplacementPolicy() {
+        return this.replacementPolicy;
+    }
+
+    /**
+     * Starts modelling writes, with the given policies for write hits and write misses
+     * @param writeBack     Whether written lines are kept dirty and written back on eviction, rather than written through to the child
+     * @param writeAllocate Whether a write miss loads the line into the cache, rather than only being passed on to the child
+     */
+    public void setWritePolicy(boolean writeBack, boolean writeAllocate) {
+        this.writeBack = writeBack;
+        this.writeAllocate = writeAllocate;
+        this.dirty = new long[(this.entries.length + 63) >>> 6];
+    }
+
+    /**
+     * Returns the number of dirty lines evicted from the cache
+     * @return A long
+     */
+    public long getWriteBacks() {
+        return this.writeBacks;
+    }
+
+    /**
+     * Returns the number of reads passed on to the child, which for the last level are the reads from main memory
+     * @return A long
+     */
+    public long getReadsOut() {
+        return this.readsOut;
+    }
+
+    /**
+     * Returns the number of writes passed on to the child, which for the last level are the writes to main memory
+     * @return A long
+     */
+    public long getWritesOut() {
+        return this.writesOut;
+    }
+
     /**
      * Returns the number of cache hits for the current cache
-     * @return An integer
+     * @return A long
      */
-    public int getHits() {
+    public long getHits() {
         return this.hits;
     }
 
     /**
      * Returns the number of misses for the current cache
-     * @return An integer
+     * @return A long
      */
-    public int getMisses() {
+    public long getMisses() {
         return this.misses;
     }
 
+    /**
+     * Returns the statistics kept on top of the hits and misses
+     * @return The cache's statistics
+     */
+    public CacheStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Returns the number of cache lines the cache holds
+     * @return An integer
+     */
+    public int getLineCount() {
+        return this.setCount * this.setSize;
+    }
+
     /**
      * Returns the number of bits to right shift to remove the offset
      * @return An integer
@@ -88,6 +187,76 @@ abstract class Cache {
      */
     public void setChild(Cache child) {
         this.child = child;
+        child.parent = this;
+    }
+
+    /**
+     * Lets lines be invalidated out of the middle of a set, which must be done before the first access.
+     * Every entry starts out as -1, the same as an evicted entry, so that free cache lines can be told apart from used ones
+     */
+    public void enableInvalidation() {
+        this.holes = true;
+        Arrays.fill(this.entries, -1);
+    }
+
+    /**
+     * Makes the cache back invalidate the lines it evicts from every level above it
+     */
+    public void setInclusive() {
+        this.enableInvalidation();
+        this.inclusive = true;
+    }
+
+    /**
+     * Starts keeping a MESI state for every cache line, which must be done before the first access.
+     * Lines leave the cache when another core writes them, so invalidation is enabled as well
+     */
+    public void enableCoherence() {
+        this.enableInvalidation();
+        this.states = new byte[this.entries.length];
+    }
+
+    /**
+     * Attaches a prefetcher to the cache, after which accesses have to go through access rather than the batched checkCache
+     * @param prefetcher The prefetcher
+     */
+    public void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+        this.prefetched = new long[(this.entries.length + 63) >>> 6];
+        this.pollution = new long[POLLUTION_ENTRIES];
+        this.suggestions = new long[prefetcher.getDegree()];
+    }
+
+    /**
+     * Returns the prefetcher attached to the cache
+     * @return The prefetcher, or null if there is none
+     */
+    public Prefetcher getPrefetcher() {
+        return this.prefetcher;
+    }
+
+    public long getPrefetches() {
+        return this.prefetches;
+    }
+
+    public long getUsefulPrefetches() {
+        return this.usefulPrefetches;
+    }
+
+    public long getUselessPrefetches() {
+        return this.uselessPrefetches;
+    }
+
+    public long getPollutionMisses() {
+        return this.pollutionMisses;
+    }
+
+    /**
+     * Returns the number of lines invalidated because a level below evicted them
+     * @return A long
+     */
+    public long getBackInvalidations() {
+        return this.backInvalidations;
     }
 
     /**
@@ -107,9 +276,10 @@ abstract class Cache {
         this.hits = 0;
         this.misses = 0;
         this.setCount = size / (lineSize * setSize);
-        this.entries = new long[setCount][this.setSize];
+        this.entries = new long[setCount * this.setSize];
         this.cacheLinePtr = new int[setCount];
         this.setCapacity = new int[setCount];
+        this.stats = new CacheStats(setCount);
 
         // Below calculated as per lectures
         // https://stackoverflow.com/questions/47074126/log2-of-an-integer-that-is-a-power-of-2 [12/02/2023]
@@ -132,31 +302,789 @@ abstract class Cache {
         long tag = memAddr >> this.getTagBitShift() & this.tagMask;
         if (this.find(index, tag)) {
             this.hits++;
+            this.stats.hit(index, memAddr >> this.offsetBitShift);
             return;
         }
 
         this.misses++;
+        this.stats.miss(index, memAddr >> this.offsetBitShift);
         if (this.child != null) {
             this.child.checkCache(memAddr); // checks the next cache in the hierarchy to see if it has cached the memory address given
         }
+        this.fill(index, tag);
+    }
+
+    /**
+     * Checks a block of line aligned addresses in order, then passes the ones that missed down to the child as a single block.
+     * Each level keeps its own state and only sees the misses of the level above in their original order,
+     * so the counts are the same as calling checkCache on each address, with one tight loop per level instead of a call chain per address
+     * @param lines The line aligned addresses to check
+     * @param count How many of the addresses are in use
+     */
+    public void checkCache(long[] lines, int count) {
+        if (this.missBuffer.length < count) {
+            this.missBuffer = new long[count];
+        }
+        long[] missed = this.missBuffer;
+        int offsetBitShift = this.offsetBitShift;
+        int indexMask = this.indexMask;
+        int tagBitShift = this.tagBitShift;
+        long tagMask = this.tagMask;
+        CacheStats stats = this.stats;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            long memAddr = lines[i];
+            int index = (int) (memAddr >> offsetBitShift & indexMask);
+            long tag = memAddr >> tagBitShift & tagMask;
+            if (this.find(index, tag)) {
+                stats.hit(index, memAddr >> offsetBitShift);
+            }
+            else {
+                stats.miss(index, memAddr >> offsetBitShift);
+                this.fill(index, tag);
+                missed[n++] = memAddr;
+            }
+        }
+        this.hits += count - n;
+        this.misses += n;
+        if (this.child != null && n > 0) {
+            this.child.checkCache(missed, n);
+        }
+        for (int i = 0; i < this.listeners.length && n > 0; i++) {
+            this.listeners[i].passed(missed, null, n);
+        }
+    }
+
+    /**
+     * Checks a block of line aligned reads, writes and write backs in order, then passes what this level sends on down to the child as a single block.
+     * Reads and writes are counted as hits and misses while write backs from the level above are not, as they are not demanded by the program.
+     * A miss that allocates fetches the line from the child before any dirty line it evicts is written back, and a write hit
+     * either marks the line dirty or is written through to the child
+     * @param lines The line aligned addresses to check
+     * @param kinds The kind of each access, one of READ, WRITE and WRITE_BACK
+     * @param count How many of the addresses are in use
+     */
+    public void checkCache(long[] lines, byte[] kinds, int count) {
+        if (this.missBuffer.length < 2 * count) {
+            this.missBuffer = new long[2 * count];  // each access passes on at most a fetch and a write back, or a fetch and a write
+        }
+        if (this.kindBuffer.length < 2 * count) {
+            this.kindBuffer = new byte[2 * count];
+        }
+        long[] out = this.missBuffer;
+        byte[] outKinds = this.kindBuffer;
+        long[] dirty = this.dirty;
+        CacheStats stats = this.stats;
+        int n = 0;
+        long hits = 0;
+        long misses = 0;
+        long reads = 0;
+        for (int i = 0; i < count; i++) {
+            long memAddr = lines[i];
+            byte kind = kinds[i];
+            int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+            long tag = memAddr >> this.tagBitShift & this.tagMask;
+            int cacheLine = this.findLine(index, tag);
+            if (kind != WRITE_BACK) {
+                if (cacheLine >= 0) {
+                    hits++;
+                    stats.hit(index, memAddr >> this.offsetBitShift);
+                }
+                else {
+                    misses++;
+                    stats.miss(index, memAddr >> this.offsetBitShift);
+                }
+            }
+            if (cacheLine < 0) {
+                if (kind != READ && !this.writeAllocate) {
+                    out[n] = memAddr;           // the write goes around this level
+                    outKinds[n++] = kind;
+                    continue;
+                }
+                if (kind != WRITE_BACK) {
+                    reads++;
+                    out[n] = memAddr;
+                    outKinds[n++] = READ;
+                }
+                boolean full = this.setCapacity[index] >= this.setSize;
+                long victim = 0;
+                if (full) {
+                    victim = this.evict(index);
+                    stats.evicted(index);
+                }
+                cacheLine = this.insert(index, tag, kind != WRITE_BACK);
+                int entry = index * this.setSize + cacheLine;
+                if ((dirty[entry >>> 6] & 1L << entry) != 0) {
+                    dirty[entry >>> 6] &= ~(1L << entry);
+                    if (full) {
+                        this.writeBacks++;
+                        out[n] = victim << this.tagBitShift | (long) index << this.offsetBitShift;
+                        outKinds[n++] = WRITE_BACK;
+                    }
+                }
+            }
+            if (kind != READ) {
+                if (this.writeBack) {
+                    int entry = index * this.setSize + cacheLine;
+                    dirty[entry >>> 6] |= 1L << entry;
+                }
+                else {
+                    out[n] = memAddr;
+                    outKinds[n++] = kind;
+                }
+            }
+        }
+        this.hits += hits;
+        this.misses += misses;
+        this.readsOut += reads;
+        this.writesOut += n - reads;
+        if (this.child != null && n > 0) {
+            this.child.checkCache(out, outKinds, n);
+        }
+        for (int i = 0; i < this.listeners.length && n > 0; i++) {
+            this.listeners[i].passed(out, outKinds, n);
+        }
+    }
+
+    /**
+     * Checks a single line aligned read, write or write back, passing on to the child what this level sends down before moving on.
+     * Follows the same rules as the batched checkCache, and is used when levels are not independent of each other,
+     * as an inclusive level invalidates lines in the levels above while they are still working through the block
+     * @param memAddr   The line aligned address
+     * @param kind      One of READ, WRITE and WRITE_BACK
+     */
+    public void access(long memAddr, byte kind) {
+        this.demand(memAddr, kind);
+        this.flushPrefetches();
+    }
+
+    /**
+     * Checks a single access like access, but only queues up what the prefetchers of this level and the ones below see, so that
+     * a line fetched for the level above cannot be evicted by a prefetch before the level above has filled it
+     * @param memAddr   The line aligned address
+     * @param kind      One of READ, WRITE and WRITE_BACK
+     */
+    private void demand(long memAddr, byte kind) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        long line = memAddr >> this.offsetBitShift;
+        int cacheLine = this.findLine(index, tag);
+        boolean trigger = false;    // Whether the access is one the prefetcher acts on
+        if (kind != WRITE_BACK) {
+            if (cacheLine >= 0) {
+                this.hits++;
+                this.stats.hit(index, line);
+                if (this.prefetcher != null && this.clearBit(this.prefetched, index * this.setSize + cacheLine)) {
+                    this.usefulPrefetches++;
+                    trigger = true;
+                }
+            }
+            else {
+                this.misses++;
+                this.stats.miss(index, line);
+                if (this.prefetcher != null) {
+                    int slot = LongHashSet.mix(line) & POLLUTION_ENTRIES - 1;
+                    if (this.pollution[slot] == line + 1) {
+                        this.pollution[slot] = 0;
+                        this.pollutionMisses++;
+                    }
+                    trigger = true;
+                }
+            }
+        }
+        if (cacheLine < 0) {
+            if (kind != READ && !this.writeAllocate) {
+                this.passOn(memAddr, kind);
+                this.defer(line, trigger);
+                return;
+            }
+            if (kind != WRITE_BACK) {
+                this.readsOut++;
+                if (this.child != null) {
+                    this.child.demand(memAddr, READ);   // fetched before this level evicts, as the child may invalidate lines here
+                }
+            }
+            cacheLine = this.fillLine(index, tag, false, kind != WRITE_BACK);
+        }
+        if (kind != READ && this.dirty != null) {
+            if (this.writeBack) {
+                int entry = index * this.setSize + cacheLine;
+                this.dirty[entry >>> 6] |= 1L << entry;
+            }
+            else {
+                this.passOn(memAddr, kind);
+            }
+        }
+        if (kind != WRITE_BACK) {
+            this.defer(line, trigger);
+        }
+    }
+
+    /**
+     * Queues a demand access for the prefetcher to see once the line is in every level that asked for it
+     * @param line      The line number accessed
+     * @param trigger   Whether the access missed or was the first use of a prefetched line
+     */
+    private void defer(long line, boolean trigger) {
+        if (this.prefetcher == null) {
+            return;
+        }
+        if (this.pending == this.pendingLines.length) {
+            this.pendingLines = Arrays.copyOf(this.pendingLines, this.pending * 2 + 2);
+            this.pendingTriggers = Arrays.copyOf(this.pendingTriggers, this.pending * 2 + 2);
+        }
+        this.pendingLines[this.pending] = line;
+        this.pendingTriggers[this.pending++] = trigger;
+    }
+
+    /**
+     * Lets the prefetchers of the levels below and then this one see the demand accesses queued up since the last flush
+     */
+    private void flushPrefetches() {
+        if (this.child != null) {
+            this.child.flushPrefetches();
+        }
+        for (int i = 0; i < this.pending; i++) {
+            this.prefetch(this.pendingLines[i], this.pendingTriggers[i]);
+        }
+        this.pending = 0;
+    }
+
+    /**
+     * Loads a tag into a set for access, evicting from the set first if it is full. An evicted line is back invalidated from the levels
+     * above when inclusive, and written back to the child when dirty
+     * @param index     The index of the set to load into
+     * @param tag       The tag to load
+     * @param prefetch  Whether the line is being prefetched
+     * @param demand    Whether the line is being loaded for a demand miss, which write backs from the level above are not
+     * @return          The cache line the tag went into
+     */
+    private int fillLine(int index, long tag, boolean prefetch, boolean demand) {
+        boolean full = this.setCapacity[index] >= this.setSize;
+        long victim = 0;
+        if (full) {
+            victim = this.evict(index);
+            this.stats.evicted(index);
+        }
+        int cacheLine = this.insert(index, tag, demand);
+        int entry = index * this.setSize + cacheLine;
+        boolean dirty = this.clearDirty(entry);
+        if (this.prefetcher != null) {
+            if (this.clearBit(this.prefetched, entry) && full) {
+                this.uselessPrefetches++;
+            }
+            if (prefetch) {
+                this.prefetched[entry >>> 6] |= 1L << entry;
+            }
+        }
+        if (full) {
+            long victimAddr = victim << this.tagBitShift | (long) index << this.offsetBitShift;
+            if (prefetch) {
+                long victimLine = victimAddr >> this.offsetBitShift;
+                this.pollution[LongHashSet.mix(victimLine) & POLLUTION_ENTRIES - 1] = victimLine + 1;
+            }
+            if (this.inclusive && this.parent != null) {
+                dirty |= this.parent.backInvalidate(victimAddr, this.lineSize);
+            }
+            if (dirty) {
+                this.writeBacks++;
+                this.passOn(victimAddr, WRITE_BACK);
+            }
+        }
+        return cacheLine;
+    }
+
+    /**
+     * Lets the prefetcher see a demand access, loading the lines it suggests that are not already in the cache.
+     * Prefetched lines are fetched from the child like any other read
+     * @param line      The line number accessed
+     * @param trigger   Whether the access missed or was the first use of a prefetched line
+     */
+    private void prefetch(long line, boolean trigger) {
+        if (this.prefetcher == null) {
+            return;
+        }
+        int n = this.prefetcher.observe(line, trigger, this.suggestions);
+        for (int i = 0; i < n; i++) {
+            long memAddr = this.suggestions[i] << this.offsetBitShift;
+            if (memAddr < 0) {
+                continue;
+            }
+            int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+            long tag = memAddr >> this.tagBitShift & this.tagMask;
+            if (this.contains(index, tag)) {
+                continue;
+            }
+            this.prefetches++;
+            this.readsOut++;
+            if (this.child != null) {
+                this.child.demand(memAddr, READ);
+            }
+            this.fillLine(index, tag, true, false);
+            if (this.child != null) {
+                this.child.flushPrefetches();
+            }
+        }
+    }
+
+    /**
+     * Sends a write or write back on to the child, or to main memory for the last level
+     * @param memAddr   The line aligned address
+     * @param kind      Either WRITE or WRITE_BACK
+     */
+    private void passOn(long memAddr, byte kind) {
+        this.writesOut++;
+        if (this.child != null) {
+            this.child.demand(memAddr, kind);   // write backs can come from a fill the levels above are still working through
+        }
+    }
+
+    /**
+     * Invalidates every line of this cache and the levels above it that overlaps the given range, as a level below is evicting it
+     * @param memAddr   The line aligned address of the line evicted below
+     * @param size      The line size of the level below
+     * @return          Whether any of the invalidated lines were dirty, in which case the level below has to write its line back
+     */
+    boolean backInvalidate(long memAddr, int size) {
+        boolean dirty = false;
+        for (long addr = memAddr - memAddr % this.lineSize; addr < memAddr + size; addr += this.lineSize) {
+            int index = (int) (addr >> this.offsetBitShift & this.indexMask);
+            long tag = addr >> this.tagBitShift & this.tagMask;
+            int cacheLine = this.invalidate(index, tag);
+            if (cacheLine >= 0) {
+                this.backInvalidations++;
+                dirty |= this.clearDirty(index * this.setSize + cacheLine);
+            }
+        }
+        // the levels above are a subset of this one, though they are still checked in case one of them does not allocate on writes
+        if (this.parent != null) {
+            dirty |= this.parent.backInvalidate(memAddr, size);
+        }
+        return dirty;
+    }
+
+    /**
+     * Loads every line held by the level above without counting them as accesses, so that a cold inclusive level starts out
+     * holding the lines of a level above restored from a checkpoint. Lines evicted to make room are back invalidated as usual
+     * @param above The level above, already holding its lines
+     */
+    void fillFrom(Cache above) {
+        for (int entry = 0; entry < above.entries.length; entry++) {
+            if (above.entries[entry] == -1) {
+                continue;
+            }
+            long memAddr = above.entries[entry] << above.tagBitShift | (long) (entry / above.setSize) << above.offsetBitShift;
+            for (long addr = memAddr - memAddr % this.lineSize; addr < memAddr + above.lineSize; addr += this.lineSize) {
+                int index = (int) (addr >> this.offsetBitShift & this.indexMask);
+                long tag = addr >> this.tagBitShift & this.tagMask;
+                if (!this.contains(index, tag)) {
+                    this.fillLine(index, tag, false, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up a line for a demand access, counting the hit or miss, and marking the line dirty if a write hits
+     * @param memAddr   The line aligned address
+     * @param write     Whether the access is a write
+     * @return          Whether the line was in the cache
+     */
+    boolean lookup(long memAddr, boolean write) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        int cacheLine = this.findLine(index, tag);
+        if (cacheLine < 0) {
+            this.misses++;
+            this.stats.miss(index, memAddr >> this.offsetBitShift);
+            return false;
+        }
+        this.hits++;
+        this.stats.hit(index, memAddr >> this.offsetBitShift);
+        if (write && this.dirty != null) {
+            int entry = index * this.setSize + cacheLine;
+            this.dirty[entry >>> 6] |= 1L << entry;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a line out of the cache, as when an exclusive level hands a line up to the level above
+     * @param memAddr   The line aligned address
+     * @return          Whether the line was dirty
+     */
+    boolean removeLine(long memAddr) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        int cacheLine = this.invalidate(index, tag);
+        return cacheLine >= 0 && this.clearDirty(index * this.setSize + cacheLine);
+    }
+
+    /**
+     * Loads a line without it being counted as an access, as when an exclusive level takes the victim of the level above
+     * @param memAddr   The line aligned address
+     * @param dirty     Whether the line is dirty
+     * @param demand    Whether the line is being loaded for a demand miss, rather than being a victim moving down from the level above
+     * @return          The address of the line evicted to make room, with victimDirty saying whether it was dirty, or -1 if none was
+     */
+    long place(long memAddr, boolean dirty, boolean demand) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        boolean full = this.setCapacity[index] >= this.setSize;
+        long victim = 0;
+        if (full) {
+            victim = this.evict(index);
+            this.stats.evicted(index);
+        }
+        int entry = index * this.setSize + this.insert(index, tag, demand);
+        this.victimDirty = this.clearDirty(entry);
+        if (dirty && this.dirty != null) {
+            this.dirty[entry >>> 6] |= 1L << entry;
+        }
+        if (!full) {
+            return -1;
+        }
+        if (this.victimDirty) {
+            this.writeBacks++;
+        }
+        return victim << this.tagBitShift | (long) index << this.offsetBitShift;
+    }
+
+    /**
+     * Looks up a line for a demand access from the cache's own core, counting the hit or miss
+     * @param memAddr   The line aligned address
+     * @return          The MESI state of the line, INVALID if it missed
+     */
+    byte lookupState(long memAddr) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        int cacheLine = this.findLine(index, tag);
+        if (cacheLine < 0) {
+            this.misses++;
+            this.stats.miss(index, memAddr >> this.offsetBitShift);
+            return INVALID;
+        }
+        this.hits++;
+        this.stats.hit(index, memAddr >> this.offsetBitShift);
+        return this.states[index * this.setSize + cacheLine];
+    }
+
+    /**
+     * Loads a line in the given MESI state without it being counted as an access, evicting from the set first if it is full
+     * @param memAddr   The line aligned address
+     * @param state     The state of the line
+     * @return          The address of the line evicted to make room, with victimState holding its state, or -1 if none was
+     */
+    long fillState(long memAddr, byte state) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        boolean full = this.setCapacity[index] >= this.setSize;
+        long victim = 0;
+        if (full) {
+            victim = this.evict(index);
+            this.stats.evicted(index);
+        }
+        int entry = index * this.setSize + this.insert(index, tag, true);
+        this.victimState = full ? this.states[entry] : INVALID;
+        this.states[entry] = state;
+        return full ? victim << this.tagBitShift | (long) index << this.offsetBitShift : -1;
+    }
+
+    /**
+     * Returns the MESI state of a line without it counting as a use of the line
+     * @param memAddr   The line aligned address
+     * @return          The state of the line, INVALID if it is not in the cache
+     */
+    byte stateOf(long memAddr) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        int cacheLine = this.peekLine(index, tag);
+        return cacheLine < 0 ? INVALID : this.states[index * this.setSize + cacheLine];
+    }
+
+    /**
+     * Changes the MESI state of a line on behalf of another core, without it counting as a use of the line.
+     * Setting the state to INVALID takes the line out of the cache
+     * @param memAddr   The line aligned address
+     * @param state     The new state, only applied if the line is in the cache
+     * @return          The state the line was in, INVALID if it was not in the cache
+     */
+    byte snoop(long memAddr, byte state) {
+        int index = (int) (memAddr >> this.offsetBitShift & this.indexMask);
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        int cacheLine = state == INVALID ? this.invalidate(index, tag) : this.peekLine(index, tag);
+        if (cacheLine < 0) {
+            return INVALID;
+        }
+        int entry = index * this.setSize + cacheLine;
+        byte old = this.states[entry];
+        this.states[entry] = state;
+        return old;
+    }
+
+    /**
+     * Returns a line aligned address as the cache holds it, the tag keeping fewer bits than an address has
+     * @param memAddr   The line aligned address
+     * @return          The address a line evicted from the cache would be given, once its tag and index are put back together
+     */
+    long tagged(long memAddr) {
+        long tag = memAddr >> this.tagBitShift & this.tagMask;
+        return tag << this.tagBitShift | memAddr & (long) this.indexMask << this.offsetBitShift;
+    }
+
+    /**
+     * Describes everything about how the cache was built that its state depends on, leaving out its name, so that a checkpoint
+     * is only restored into a cache built the same way and recorded miss streams are only replayed below the same caches
+     * @return A string
+     */
+    String describe() {
+        return this.getClass().getSimpleName() + " " + this.size + " " + this.lineSize + " " + this.setSize + " " + this.replacementPolicy
+                + (this.dirty == null ? "" : (this.writeBack ? " write_back" : " write_through") + (this.writeAllocate ? " write_allocate" : ""))
+                + (this.prefetcher == null ? "" : " " + this.prefetcher.getClass().getSimpleName() + " " + this.prefetcher.getDegree())
+                + (this.inclusive ? " inclusive" : this.holes ? " invalidating" : "")
+                + (this.states == null ? "" : " coherent");
+    }
+
+    /**
+     * Adds a listener given every block the batched checkCache passes on to the child, even when the cache is the last level
+     * @param listener The listener
+     */
+    void addListener(MissListener listener) {
+        this.listeners = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+        this.listeners[this.listeners.length - 1] = listener;
+    }
+
+    /**
+     * Returns the counts printed for a nine hierarchy without prefetchers, being the hits, misses, write backs, reads passed on,
+     * and writes passed on
+     * @return A new array of the counts
+     */
+    long[] getCounts() {
+        return new long[] {this.hits, this.misses, this.writeBacks, this.readsOut, this.writesOut};
+    }
+
+    /**
+     * Replaces the counts returned by getCounts, as when the cache stands in for one simulated elsewhere
+     * @param counts The counts, in the order of getCounts
+     */
+    void setCounts(long[] counts) {
+        this.hits = counts[0];
+        this.misses = counts[1];
+        this.writeBacks = counts[2];
+        this.readsOut = counts[3];
+        this.writesOut = counts[4];
+    }
+
+    /**
+     * Writes the contents of the cache, its counts, and the state of its replacement policy and prefetcher to a checkpoint.
+     * The per set statistics are not saved
+     * @param out The writer
+     */
+    void save(StateWriter out) throws IOException {
+        out.putLongs(this.entries);
+        out.putInts(this.cacheLinePtr);
+        out.putInts(this.setCapacity);
+        out.putLong(this.hits);
+        out.putLong(this.misses);
+        out.putLong(this.writeBacks);
+        out.putLong(this.readsOut);
+        out.putLong(this.writesOut);
+        out.putLong(this.backInvalidations);
+        out.putLong(this.prefetches);
+        out.putLong(this.usefulPrefetches);
+        out.putLong(this.uselessPrefetches);
+        out.putLong(this.pollutionMisses);
+        if (this.dirty != null) {
+            out.putLongs(this.dirty);
+        }
+        if (this.prefetcher != null) {
+            out.putLongs(this.prefetched);
+            out.putLongs(this.pollution);
+            this.prefetcher.save(out);
+        }
+        if (this.states != null) {
+            out.putBytes(this.states);
+        }
+        this.saveReplacement(out);
+    }
+
+    /**
+     * Restores what save wrote, into a cache built the same way as the one saved
+     * @param in The reader
+     */
+    void load(StateReader in) throws IOException {
+        in.getLongs(this.entries);
+        in.getInts(this.cacheLinePtr);
+        in.getInts(this.setCapacity);
+        this.hits = in.getLong();
+        this.misses = in.getLong();
+        this.writeBacks = in.getLong();
+        this.readsOut = in.getLong();
+        this.writesOut = in.getLong();
+        this.backInvalidations = in.getLong();
+        this.prefetches = in.getLong();
+        this.usefulPrefetches = in.getLong();
+        this.uselessPrefetches = in.getLong();
+        this.pollutionMisses = in.getLong();
+        if (this.dirty != null) {
+            in.getLongs(this.dirty);
+        }
+        if (this.prefetcher != null) {
+            in.getLongs(this.prefetched);
+            in.getLongs(this.pollution);
+            this.prefetcher.load(in);
+        }
+        if (this.states != null) {
+            in.getBytes(this.states);
+        }
+        this.loadReplacement(in);
+    }
+
+    /**
+     * Sets every count of the cache back to zero, leaving its contents alone, as when a warmed up cache starts measuring
+     */
+    void resetCounts() {
+        this.hits = 0;
+        this.misses = 0;
+        this.writeBacks = 0;
+        this.readsOut = 0;
+        this.writesOut = 0;
+        this.backInvalidations = 0;
+        this.prefetches = 0;
+        this.usefulPrefetches = 0;
+        this.uselessPrefetches = 0;
+        this.pollutionMisses = 0;
+    }
+
+    /**
+     * Writes the state of the replacement policy to a checkpoint, for caches whose policy keeps any
+     * @param out The writer
+     */
+    protected void saveReplacement(StateWriter out) throws IOException {
+    }
+
+    /**
+     * Restores what saveReplacement wrote
+     * @param in The reader
+     */
+    protected void loadReplacement(StateReader in) throws IOException {
+    }
+
+    /**
+     * Clears the dirty bit of an entry
+     * @param entry The position of the entry in entries
+     * @return      Whether the entry was dirty
+     */
+    private boolean clearDirty(int entry) {
+        return this.dirty != null && this.clearBit(this.dirty, entry);
+    }
+
+    /**
+     * Clears an entry's bit in a bitset
+     * @param bits  The bitset
+     * @param entry The position of the entry in entries
+     * @return      Whether the bit was set
+     */
+    private boolean clearBit(long[] bits, int entry) {
+        if ((bits[entry >>> 6] & 1L << entry) == 0) {
+            return false;
+        }
+        bits[entry >>> 6] &= ~(1L << entry);
+        return true;
+    }
+
+    /**
+     * Checks a block of line aligned addresses in order without going to the child, keeping only the addresses that missed.
+     * The misses are moved down to the start of the arrays along with their ids, so the caller can pass them on to a level that is
+     * not this cache's child, such as a last level cache shared between cores
+     * @param lines The line aligned addresses to check, overwritten with the misses
+     * @param ids   A value kept with each address, such as its position in the trace, overwritten with the ids of the misses
+     * @param count How many of the addresses are in use
+     * @return      The number of misses
+     */
+    int filterMisses(long[] lines, long[] ids, int count) {
+        int offsetBitShift = this.offsetBitShift;
+        int indexMask = this.indexMask;
+        int tagBitShift = this.tagBitShift;
+        long tagMask = this.tagMask;
+        CacheStats stats = this.stats;
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            long memAddr = lines[i];
+            int index = (int) (memAddr >> offsetBitShift & indexMask);
+            long tag = memAddr >> tagBitShift & tagMask;
+            if (this.find(index, tag)) {
+                stats.hit(index, memAddr >> offsetBitShift);
+            }
+            else {
+                stats.miss(index, memAddr >> offsetBitShift);
+                this.fill(index, tag);
+                lines[n] = memAddr;
+                ids[n++] = ids[i];
+            }
+        }
+        this.hits += count - n;
+        this.misses += n;
+        return n;
+    }
+
+    /**
+     * Looks up a memory address and loads it in on a miss, without counting the result or going to the child.
+     * Used when the sets of a single cache are simulated on separate threads, each thread keeping its own counts.
+     * Only the per set statistics are updated, so misses must not be classified
+     * @param memAddr   The memory address converted into a long
+     * @return          Whether the address was a hit
+     */
+    boolean probe(long memAddr) {
+        int index = (int) (memAddr >> this.getOffsetBitShift() & this.getIndexMask());
+        long tag = memAddr >> this.getTagBitShift() & this.tagMask;
+        if (this.find(index, tag)) {
+            this.stats.hit(index, memAddr >> this.offsetBitShift);
+            return true;
+        }
+        this.stats.miss(index, memAddr >> this.offsetBitShift);
+        this.fill(index, tag);
+        return false;
+    }
+
+    /**
+     * Adds hits and misses counted outside of checkCache onto the cache's counts
+     * @param hits      The number of hits to add
+     * @param misses    The number of misses to add
+     */
+    void addCounts(long hits, long misses) {
+        this.hits += hits;
+        this.misses += misses;
+    }
+
+    /**
+     * Loads a tag into a set, evicting from the set first if it is full
+     * @param index The index of the set to load into
+     * @param tag   The tag to load
+     */
+    private void fill(int index, long tag) {
         if (this.setCapacity[index] >= this.setSize) {
             this.evict(index);
+            this.stats.evicted(index);
         }
-        this.insert(index, tag);
+        this.insert(index, tag, true);
     }
 
     /**
      * Abstract method where the eviction policy for a cache is defined
      * @param index The index to evict from for a given cache
+     * @return      The tag that was evicted
      */
-    abstract void evict(int index);
+    abstract long evict(int index);
 
     /**
-     * Abstract method where the insertion policy for a given cache is defined
-     * @param index The index to insert into
-     * @param tag   The tag you want to cache
+     * Abstract method where the insertion policy for a given cache is defined. After an eviction the tag goes into the evicted cache line
+     * @param index     The index to insert into
+     * @param tag       The tag you want to cache
+     * @param demand    Whether the tag is loaded for a demand miss, which replacement policies learning from misses train on
+     * @return          The cache line the tag went into
      */
-    abstract void insert(int index, long tag);
+    abstract int insert(int index, long tag, boolean demand);
 
     /**
      * Abstract method to find if the tag you are looking for is in the given set
@@ -165,6 +1093,38 @@ abstract class Cache {
      * @return      Whether it was found or not
      */
     abstract boolean find(int index, long tag);
+
+    /**
+     * Abstract method doing the same as find, but returning where the tag was found
+     * @param index The index for your set you want to search in
+     * @param tag   The tag you are wanting to search for
+     * @return      The cache line holding the tag, or -1 if it was not found
+     */
+    abstract int findLine(int index, long tag);
+
+    /**
+     * Abstract method to empty the cache line holding a tag, without telling the replacement policy of an access
+     * @param index The index of the set to search in
+     * @param tag   The tag to remove
+     * @return      The cache line that held the tag, or -1 if it was not in the set
+     */
+    abstract int invalidate(int index, long tag);
+
+    /**
+     * Abstract method to check whether a tag is in a set without it counting as a use of the line
+     * @param index The index of the set to search in
+     * @param tag   The tag to look for
+     * @return      Whether it was found
+     */
+    abstract boolean contains(int index, long tag);
+
+    /**
+     * Abstract method doing the same as contains, but returning where the tag was found
+     * @param index The index of the set to search in
+     * @param tag   The tag to look for
+     * @return      The cache line holding the tag, or -1 if it was not found
+     */
+    abstract int peekLine(int index, long tag);
 }
 
 class DirectMapped extends Cache {
@@ -186,21 +1146,25 @@ class DirectMapped extends Cache {
      * Removes the current tag in the cache line at the given index
      * @param index The index to evict from for a given cache
      */
-    protected void evict(int index) {
-        this.entries[index][0] = -1;
+    protected long evict(int index) {
+        long tag = this.entries[index];
+        this.entries[index] = -1;
         this.cacheLinePtr[index] = 0;
         this.setCapacity[index] = 0;
+        return tag;
     }
 
     /**
      * Inserts a tag into the set specified by the given index
-     * @param index The index to insert into
-     * @param tag   The tag you want to cache
+     * @param index     The index to insert into
+     * @param tag       The tag you want to cache
+     * @param demand    Whether the tag is loaded for a demand miss
      */
-    protected void insert(int index, long tag) {
-        this.entries[index][0] = tag;
+    protected int insert(int index, long tag, boolean demand) {
+        this.entries[index] = tag;
         this.cacheLinePtr[index]++;
         this.setCapacity[index] = 1;
+        return 0;
     }
 
     /**
@@ -210,13 +1174,57 @@ class DirectMapped extends Cache {
      * @return      Whether it was in the cache or not
      */
     public boolean find(int index, long tag) {
-        return this.entries[index][0] == tag;
+        return this.entries[index] == tag;
+    }
+
+    /**
+     * Finds if your tag is in the directly mapped cache, the set's only cache line being 0
+     * @param index The index for your set you want to search in
+     * @param tag   The tag you are wanting to search for
+     * @return      0 if it was in the cache, otherwise -1
+     */
+    public int findLine(int index, long tag) {
+        return this.entries[index] == tag ? 0 : -1;
+    }
+
+    /**
+     * Checks whether the cache line at the given index holds the tag
+     * @param index The index of the set
+     * @param tag   The tag to look for
+     * @return      Whether it was found
+     */
+    public boolean contains(int index, long tag) {
+        return this.entries[index] == tag;
+    }
+
+    /**
+     * Checks whether the cache line at the given index holds the tag, the set's only cache line being 0
+     * @param index The index of the set
+     * @param tag   The tag to look for
+     * @return      0 if it was found, otherwise -1
+     */
+    public int peekLine(int index, long tag) {
+        return this.entries[index] == tag ? 0 : -1;
+    }
+
+    /**
+     * Empties the cache line at the given index if it holds the tag
+     * @param index The index of the set
+     * @param tag   The tag to remove
+     * @return      0 if the tag was removed, otherwise -1
+     */
+    protected int invalidate(int index, long tag) {
+        if (this.entries[index] != tag) {
+            return -1;
+        }
+        this.entries[index] = -1;
+        this.setCapacity[index] = 0;
+        return 0;
     }
 }
 
 class NWayAssociative extends Cache {
-    LRU lru;
-    LFU lfu;
+    private final ReplacementPolicy policy;    // Created once from the policy's name, so that no string is compared per access
 
     /**
      * Creates an NWayAssociative cache, defaulting to the round-robin replacement policy if none is specified
@@ -228,83 +1236,139 @@ class NWayAssociative extends Cache {
      */
     public NWayAssociative(String name, int size, int lineSize, int setSize, String replacementPolicy) {
         super(name, size, lineSize, setSize, replacementPolicy);
-        switch (this.replacementPolicy) {
-            case "lru":
-                lru = new LRU(this.setCount);
-                break;
-            case "lfu":
-                lfu = new LFU(this.setCount);
-                break;
-        }
+        this.policy = ReplacementPolicy.create(this.replacementPolicy, this.setCount, this.setSize);
     }
 
     /**
-     * Evicts from an index using either the round-robin, least frequently used, or least recently used eviction policies
+     * Returns the replacement policy of the cache
+     * @return A ReplacementPolicy
+     */
+    public ReplacementPolicy getPolicy() {
+        return this.policy;
+    }
+
+    protected void saveReplacement(StateWriter out) throws IOException {
+        this.policy.save(out);
+    }
+
+    protected void loadReplacement(StateReader in) throws IOException {
+        this.policy.load(in);
+    }
+
+    /**
+     * Evicts from an index, the cache line being picked by the replacement policy
      * @param index The index to evict from for a given cache
      */
-    protected void evict(int index) {
-        int cacheLine;
-        switch (this.replacementPolicy) {
-            case "lru":
-                cacheLine = this.lru.getHead(index);     // finding the head of the lru linked list
-                this.entries[index][cacheLine] = -1;                // resetting the cache line entry
-                this.lru.remove(index, cacheLine);                  // removing the cache line entry from the lru object
-                this.cacheLinePtr[index] = cacheLine;               // setting the next free cache line to the current one
-                break;
-            case "lfu":
-                cacheLine = this.lfu.getLFUCacheLine(index);        // finding the least frequently used cache line from a treemap
-                this.entries[index][cacheLine] = -1;                // resetting the cache line entry
-                this.lfu.remove(index, cacheLine);                  // removing the cache line entry from the lru object
-                this.cacheLinePtr[index] = cacheLine;               // setting the next free cache line to the current one
-                break;
-            default:
-                this.entries[index][this.cacheLinePtr[index]] = -1; // evicting the current cache line pointed to by the cache line pointer
-        }
+    protected long evict(int index) {
+        int cacheLine = this.policy.victim(index, this.cacheLinePtr[index]);
+        this.policy.remove(index, cacheLine);
+        this.cacheLinePtr[index] = cacheLine;                       // setting the next free cache line to the evicted one
+        long tag = this.entries[index * this.setSize + cacheLine];
+        this.entries[index * this.setSize + cacheLine] = -1;        // resetting the cache line entry
         this.setCapacity[index]--;                                  // decrementing the set capacity for the current set
+        return tag;
     }
 
     /**
-     * Inserts into a specified set a specified tag while adhering to a specified replacement policy, one of lru, lfu, and rr
-     * @param index The index to insert into
-     * @param tag   The tag you want to cache
+     * Inserts into a specified set a specified tag, letting the replacement policy know of the new cache line
+     * @param index     The index to insert into
+     * @param tag       The tag you want to cache
+     * @param demand    Whether the tag is loaded for a demand miss
      */
-    protected void insert(int index, long tag) {
-        this.entries[index][this.cacheLinePtr[index]] = tag;
-
-        switch (this.replacementPolicy) {
-            case "lru":
-                this.lru.update(index, this.cacheLinePtr[index]);
-                break;
-            case "lfu":
-                this.lfu.update(index, this.cacheLinePtr[index]);
-                break;
+    protected int insert(int index, long tag, boolean demand) {
+        int cacheLine = this.cacheLinePtr[index];
+        if (this.holes && this.entries[index * this.setSize + cacheLine] != -1) {
+            cacheLine = this.findWay(index, -1);                    // the pointer is on a used line, so filling one of the holes left by invalidations
         }
-
-        this.cacheLinePtr[index] = ++this.cacheLinePtr[index] % this.setSize;   // increments the cache pointer, cycling back round to the start when at the end
+        this.entries[index * this.setSize + cacheLine] = tag;
+        this.policy.insert(index, cacheLine, demand);
+        this.cacheLinePtr[index] = (cacheLine + 1) % this.setSize;  // increments the cache pointer, cycling back round to the start when at the end
         this.setCapacity[index]++;
+        return cacheLine;
     }
 
     /**
-     * Looks for the tag you want in the specified index, updating the lru/lfu if one of the two policies is selected
+     * Looks for the tag you want in the specified index, letting the replacement policy know of a hit
      * @param index The index for your set you want to search in
      * @param tag   The tag you are wanting to search for
      * @return      Returns whether the tag was found or not
      */
     public boolean find(int index, long tag) {
-        for (int i = 0; i < this.setSize; i++) {
-            if (this.entries[index][i] == tag) {
-                switch (this.replacementPolicy) {
-                    case "lru":
-                        this.lru.update(index, i);
-                        break;
-                    case "lfu":
-                        this.lfu.update(index, i);
-                        break;
-                }
-                return true;
-            }
+        int cacheLine = this.findWay(index, tag);
+        if (cacheLine < 0) {
+            return false;
         }
+        this.policy.touch(index, cacheLine);
+        return true;
+    }
 
-        return false;
+    /**
+     * Looks for the tag you want in the specified index like find, returning the cache line it was found in
+     * @param index The index for your set you want to search in
+     * @param tag   The tag you are wanting to search for
+     * @return      The cache line holding the tag, or -1 if it was not found
+     */
+    public int findLine(int index, long tag) {
+        int cacheLine = this.findWay(index, tag);
+        if (cacheLine >= 0) {
+            this.policy.touch(index, cacheLine);
+        }
+        return cacheLine;
+    }
+
+    /**
+     * Checks whether a set holds a tag without telling the replacement policy
+     * @param index The index of the set
+     * @param tag   The tag to look for
+     * @return      Whether it was found
+     */
+    public boolean contains(int index, long tag) {
+        return this.findWay(index, tag) >= 0;
+    }
+
+    /**
+     * Finds the cache line holding a tag without telling the replacement policy
+     * @param index The index of the set
+     * @param tag   The tag to look for
+     * @return      The cache line holding the tag, or -1 if it was not found
+     */
+    public int peekLine(int index, long tag) {
+        return this.findWay(index, tag);
+    }
+
+    /**
+     * Empties the cache line holding a tag, leaving a hole that a later insert fills
+     * @param index The index of the set
+     * @param tag   The tag to remove
+     * @return      The cache line that held the tag, or -1 if it was not in the set
+     */
+    protected int invalidate(int index, long tag) {
+        int cacheLine = this.findWay(index, tag);
+        if (cacheLine < 0) {
+            return -1;
+        }
+        this.policy.remove(index, cacheLine);
+        this.entries[index * this.setSize + cacheLine] = -1;
+        this.setCapacity[index]--;
+        return cacheLine;
+    }
+
+    /**
+     * Scans a set for a tag. The scan is a plain counted loop over one contiguous run of the entries array with no other work in it,
+     * which the JIT can unroll for wide sets
+     * @param index The index of the set to search
+     * @param tag   The tag to search for
+     * @return      The cache line holding the tag, or -1 if it is not in the set
+     */
+    private int findWay(int index, long tag) {
+        long[] entries = this.entries;
+        int base = index * this.setSize;
+        int end = base + this.setSize;
+        for (int i = base; i < end; i++) {
+            if (entries[i] == tag) {
+                return i - base;
+            }
+        }
+        return -1;
     }
 }
@@ -0,0 +1,219 @@
+/**
+ * Statistics kept by a cache on top of its total hits and misses, all in primitive arrays so that nothing is allocated per access.
+ * Hits, misses and evictions are always counted per set. Classifying misses into compulsory, capacity and conflict misses needs a
+ * shadow fully associative cache, so it is only done once enabled.
+ */
+class CacheStats {
+    private final long[] setHits;
+    private final long[] setMisses;
+    private final long[] setEvictions;
+    private MissClassifier classifier;  // Only present once miss classification is enabled
+
+    /**
+     * Creates zeroed statistics for a cache
+     * @param setCount The number of sets in the cache
+     */
+    public CacheStats(int setCount) {
+        this.setHits = new long[setCount];
+        this.setMisses = new long[setCount];
+        this.setEvictions = new long[setCount];
+    }
+
+    /**
+     * Starts classifying misses, which must be done before the first access
+     * @param lines The number of cache lines in the cache, being the size of the shadow fully associative cache
+     */
+    public void enableClassification(int lines) {
+        this.classifier = new MissClassifier(lines);
+    }
+
+    /**
+     * Returns whether misses are being classified
+     * @return A boolean
+     */
+    public boolean isClassifying() {
+        return this.classifier != null;
+    }
+
+    /**
+     * Records a hit in a set
+     * @param index The index of the set
+     * @param line  The address of the line accessed with the offset shifted away
+     */
+    void hit(int index, long line) {
+        this.setHits[index]++;
+        if (this.classifier != null) {
+            this.classifier.hit(line);
+        }
+    }
+
+    /**
+     * Records a miss in a set
+     * @param index The index of the set
+     * @param line  The address of the line accessed with the offset shifted away
+     */
+    void miss(int index, long line) {
+        this.setMisses[index]++;
+        if (this.classifier != null) {
+            this.classifier.miss(line);
+        }
+    }
+
+    /**
+     * Records an eviction from a set
+     * @param index The index of the set
+     */
+    void evicted(int index) {
+        this.setEvictions[index]++;
+    }
+
+    public long[] getSetHits() {
+        return this.setHits;
+    }
+
+    public long[] getSetMisses() {
+        return this.setMisses;
+    }
+
+    public long[] getSetEvictions() {
+        return this.setEvictions;
+    }
+
+    /**
+     * Returns the number of evictions across every set
+     * @return A long
+     */
+    public long getEvictions() {
+        long evictions = 0;
+        for (long e : this.setEvictions) {
+            evictions += e;
+        }
+        return evictions;
+    }
+
+    public long getCompulsoryMisses() {
+        return this.classifier == null ? 0 : this.classifier.compulsory;
+    }
+
+    public long getCapacityMisses() {
+        return this.classifier == null ? 0 : this.classifier.capacity;
+    }
+
+    public long getConflictMisses() {
+        return this.classifier == null ? 0 : this.classifier.conflict;
+    }
+}
+
+/**
+ * Sorts misses into the three Cs. A miss on a line never seen before is compulsory, a miss that a fully associative LRU cache
+ * of the same number of lines would also have taken is a capacity miss, and any other miss is a conflict miss.
+ * The shadow cache is a hash map from line to slot plus an intrusive LRU list over the slots.
+ */
+class MissClassifier {
+    private static final int NONE = -1;
+    private final LongHashSet seen;     // Every line that has ever missed
+    private final LongIntHashMap slots; // The slot holding each line in the shadow cache
+    private final long[] lines;         // The line held by each slot
+    private final int[] prev;           // The slot used just before each slot, NONE for the least recently used
+    private final int[] next;           // The slot used just after each slot, NONE for the most recently used
+    private int head = NONE;            // The least recently used slot
+    private int tail = NONE;            // The most recently used slot
+    private int used;                   // The number of slots filled so far
+    long compulsory;
+    long capacity;
+    long conflict;
+
+    /**
+     * Creates an empty classifier
+     * @param capacity The number of lines in the cache being classified
+     */
+    public MissClassifier(int capacity) {
+        this.seen = new LongHashSet(capacity);
+        this.slots = new LongIntHashMap(capacity);
+        this.lines = new long[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+    }
+
+    /**
+     * Records a hit in the real cache, keeping the shadow cache's recency up to date
+     * @param line The line accessed
+     */
+    void hit(long line) {
+        this.access(line);
+    }
+
+    /**
+     * Classifies a miss in the real cache
+     * @param line The line accessed
+     */
+    void miss(long line) {
+        boolean shadowHit = this.access(line);
+        if (this.seen.add(line)) {
+            this.compulsory++;
+        }
+        else if (shadowHit) {
+            this.conflict++;
+        }
+        else {
+            this.capacity++;
+        }
+    }
+
+    /**
+     * Accesses a line in the shadow cache, evicting its least recently used line on a miss once it is full
+     * @param line  The line accessed
+     * @return      Whether the line was in the shadow cache
+     */
+    private boolean access(long line) {
+        int slot = this.slots.get(line, NONE);
+        if (slot != NONE) {
+            if (slot != this.tail) {
+                this.unlink(slot);
+                this.append(slot);
+            }
+            return true;
+        }
+        if (this.used < this.lines.length) {
+            slot = this.used++;
+        }
+        else {
+            slot = this.head;
+            this.unlink(slot);
+            this.slots.remove(this.lines[slot]);
+        }
+        this.lines[slot] = line;
+        this.slots.put(line, slot);
+        this.append(slot);
+        return false;
+    }
+
+    private void unlink(int slot) {
+        int before = this.prev[slot];
+        int after = this.next[slot];
+        if (before == NONE) {
+            this.head = after;
+        }
+        else {
+            this.next[before] = after;
+        }
+        if (after == NONE) {
+            this.tail = before;
+        }
+        else {
+            this.prev[after] = before;
+        }
+    }
+
+    private void append(int slot) {
+        this.prev[slot] = this.tail;
+        this.next[slot] = NONE;
+        if (this.tail == NONE) {
+            this.head = slot;
+        }
+        else {
+            this.next[this.tail] = slot;
+        }
+        this.tail = slot;
+    }
+}
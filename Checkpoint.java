@@ -0,0 +1,380 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of every cache of a run along with how far through the trace the run had got, so that an interrupted run can carry on
+ * from the snapshot, or new hierarchies can start from caches already warmed on the start of the trace.
+ * The file starts with the magic number, a version, and the trace's size, offset, last address and number of accesses read.
+ * The hierarchies follow, each being its name and number of caches, then for each cache a description of how it was built
+ * followed by the length of its state and the state itself, so that a reader can skip the caches it does not want
+ */
+class Checkpoint {
+    static final int MAGIC = 0x43534350;    // "CSCP"
+    static final int VERSION = 1;
+
+    private final long traceSize;   // The size of the trace file, to catch a checkpoint being used with the wrong trace
+    private final long offset;      // Where the next access starts in the trace, as given by TraceReader.getOffset
+    private final long address;     // The address of the last access read, which binary traces store the next address relative to
+    private final long accesses;    // The number of accesses read from the trace
+    private final String[] names;           // The name of each hierarchy
+    private final String[][] descriptions;  // How each cache of each hierarchy was built, from Cache.describe
+    private final ByteBuffer[][] states;    // The saved state of each cache of each hierarchy
+
+    private Checkpoint(ByteBuffer buffer) throws IOException {
+        StateReader in = new StateReader(buffer);
+        if (buffer.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new IOException("Not a checkpoint");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        this.traceSize = in.getLong();
+        this.offset = in.getLong();
+        this.address = in.getLong();
+        this.accesses = in.getLong();
+        int count = in.getInt();
+        this.names = new String[count];
+        this.descriptions = new String[count][];
+        this.states = new ByteBuffer[count][];
+        for (int i = 0; i < count; i++) {
+            this.names[i] = in.getString();
+            int caches = in.getInt();
+            this.descriptions[i] = new String[caches];
+            this.states[i] = new ByteBuffer[caches];
+            for (int j = 0; j < caches; j++) {
+                this.descriptions[i][j] = in.getString();
+                this.states[i][j] = in.getSlice((int) in.getLong());
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the given hierarchies, first to a temporary file which then replaces any earlier checkpoint,
+     * so that a run interrupted while writing still leaves the previous checkpoint intact
+     * @param path          Where to write the checkpoint
+     * @param hierarchies   The hierarchies, every access read so far having been fed into them
+     * @param trace         The trace being read
+     * @param accesses      The number of accesses read from the trace
+     */
+    static void write(Path path, Hierarchy[] hierarchies, TraceReader trace, long accesses) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            StateWriter out = new StateWriter(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(trace.length());
+            out.putLong(trace.getOffset());
+            out.putLong(trace.getAddress());
+            out.putLong(accesses);
+            out.putInt(hierarchies.length);
+            for (Hierarchy hierarchy : hierarchies) {
+                out.putString(hierarchy.getName() == null ? "" : hierarchy.getName());
+                out.putInt(hierarchy.getCaches().length);
+                for (Cache cache : hierarchy.getCaches()) {
+                    out.putString(cache.describe());
+                    long lengthAt = out.position();
+                    out.putLong(0);
+                    cache.save(out);
+                    out.flush();
+                    ByteBuffer length = ByteBuffer.allocate(Long.BYTES);
+                    length.putLong(0, out.position() - lengthAt - Long.BYTES);
+                    channel.write(length, lengthAt);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a checkpoint, mapping the file rather than copying it onto the heap
+     * @param path  The path of the checkpoint
+     * @return      The checkpoint
+     */
+    static Checkpoint read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint " + path + " is larger than 2GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Checkpoint(buffer);
+        }
+    }
+
+    /**
+     * Returns the number of accesses read from the trace before the checkpoint was taken
+     * @return A long
+     */
+    public long getAccesses() {
+        return this.accesses;
+    }
+
+    /**
+     * Moves a trace on to where the checkpoint was taken
+     * @param trace The trace the checkpoint was taken from, freshly opened
+     */
+    public void seek(TraceReader trace) throws IOException {
+        if (trace.length() != this.traceSize) {
+            throw new IOException("The checkpoint was taken from a trace of " + this.traceSize + " bytes, not " + trace.length());
+        }
+        trace.seek(this.offset, this.address, this.accesses);
+    }
+
+    /**
+     * Restores every cache of the hierarchies from the checkpoint, counts included, for carrying on with an interrupted run
+     * @param hierarchies The hierarchies, which must be built from the same configs as those checkpointed, in the same order
+     */
+    public void resume(List<Hierarchy> hierarchies) throws IOException {
+        if (hierarchies.size() != this.names.length) {
+            throw new IOException("The checkpoint has " + this.names.length + " hierarchies, not " + hierarchies.size());
+        }
+        for (int i = 0; i < this.names.length; i++) {
+            Cache[] caches = hierarchies.get(i).getCaches();
+            if (this.matching(i, caches) != caches.length || caches.length != this.descriptions[i].length) {
+                throw new IOException("Hierarchy " + i + " does not match the checkpoint");
+            }
+            for (int j = 0; j < caches.length; j++) {
+                caches[j].load(new StateReader(this.states[i][j].duplicate()));
+            }
+        }
+    }
+
+    /**
+     * Warms up the first levels of a hierarchy from the checkpointed hierarchy sharing the most levels with it, starting from the first.
+     * The restored caches keep their contents but start counting from zero, and the levels below them start empty, bar those of an
+     * inclusive hierarchy, which are filled with the lines of the levels above so that every level still holds the ones above it
+     * @param hierarchy The hierarchy to warm up
+     * @return          The names of the caches restored
+     */
+    public List<String> warmStart(Hierarchy hierarchy) throws IOException {
+        Cache[] caches = hierarchy.getCaches();
+        int best = -1;
+        int levels = 0;
+        for (int i = 0; i < this.names.length; i++) {
+            int matching = this.matching(i, caches);
+            if (matching > levels) {
+                best = i;
+                levels = matching;
+            }
+        }
+        List<String> restored = new ArrayList<>();
+        for (int j = 0; j < levels; j++) {
+            caches[j].load(new StateReader(this.states[best][j].duplicate()));
+            caches[j].resetCounts();
+            restored.add(caches[j].getName());
+        }
+        if (hierarchy.isInclusive() && levels > 0) {
+            for (int j = levels; j < caches.length; j++) {
+                caches[j].fillFrom(caches[j - 1]);
+            }
+            for (Cache cache : caches) {
+                cache.resetCounts();    // filling the cold levels can back invalidate lines above, which no access of the trace did
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Counts how many levels, starting from the first, a checkpointed hierarchy has in common with the given caches
+     * @param i         The position of the checkpointed hierarchy
+     * @param caches    The caches to compare with
+     * @return          The number of levels built the same way
+     */
+    private int matching(int i, Cache[] caches) {
+        int levels = 0;
+        while (levels < caches.length && levels < this.descriptions[i].length && caches[levels].describe().equals(this.descriptions[i][levels])) {
+            levels++;
+        }
+        return levels;
+    }
+}
+
+/**
+ * Writes the state of a run to a file channel through a direct buffer, arrays being written whole as a length followed by their values
+ */
+class StateWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+    /**
+     * Creates a writer appending to the given channel
+     * @param channel The channel, positioned where the state should start
+     */
+    public StateWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    public void putInt(int value) throws IOException {
+        this.ensure(Integer.BYTES);
+        this.buffer.putInt(value);
+    }
+
+    public void putLong(long value) throws IOException {
+        this.ensure(Long.BYTES);
+        this.buffer.putLong(value);
+    }
+
+    public void putString(String value) throws IOException {
+        this.putBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void putLongs(long[] values) throws IOException {
+        this.putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            this.ensure(Long.BYTES);
+            int n = Math.min(values.length - i, this.buffer.remaining() / Long.BYTES);
+            this.buffer.asLongBuffer().put(values, i, n);
+            this.buffer.position(this.buffer.position() + n * Long.BYTES);
+            i += n;
+        }
+    }
+
+    public void putInts(int[] values) throws IOException {
+        this.putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            this.ensure(Integer.BYTES);
+            int n = Math.min(values.length - i, this.buffer.remaining() / Integer.BYTES);
+            this.buffer.asIntBuffer().put(values, i, n);
+            this.buffer.position(this.buffer.position() + n * Integer.BYTES);
+            i += n;
+        }
+    }
+
+    public void putBytes(byte[] values) throws IOException {
+        this.putInt(values.length);
+        for (int i = 0; i < values.length; ) {
+            this.ensure(1);
+            int n = Math.min(values.length - i, this.buffer.remaining());
+            this.buffer.put(values, i, n);
+            i += n;
+        }
+    }
+
+    public void putBooleans(boolean[] values) throws IOException {
+        this.putInt(values.length);
+        for (boolean value : values) {
+            this.ensure(1);
+            this.buffer.put((byte) (value ? 1 : 0));
+        }
+    }
+
+    /**
+     * Returns the position in the file that the next value will be written at
+     * @return A long
+     */
+    public long position() throws IOException {
+        return this.channel.position() + this.buffer.position();
+    }
+
+    /**
+     * Writes out everything that has been buffered so far
+     */
+    public void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (this.buffer.remaining() < bytes) {
+            this.flush();
+        }
+    }
+}
+
+/**
+ * Reads back state written by StateWriter. Arrays are read into the existing arrays of the object being restored,
+ * a length that does not match meaning the checkpoint came from a differently built object
+ */
+class StateReader {
+    private final ByteBuffer buffer;
+
+    /**
+     * Creates a reader over the given buffer
+     * @param buffer The buffer, positioned at the start of the state
+     */
+    public StateReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public int getInt() throws IOException {
+        this.ensure(Integer.BYTES);
+        return this.buffer.getInt();
+    }
+
+    public long getLong() throws IOException {
+        this.ensure(Long.BYTES);
+        return this.buffer.getLong();
+    }
+
+    public String getString() throws IOException {
+        int length = this.getInt();
+        this.ensure(length);
+        byte[] bytes = new byte[length];
+        this.buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Takes the next bytes as a buffer of their own, moving past them
+     * @param length    The number of bytes
+     * @return          A buffer over just those bytes
+     */
+    public ByteBuffer getSlice(int length) throws IOException {
+        this.ensure(length);
+        ByteBuffer slice = this.buffer.slice(this.buffer.position(), length);
+        this.buffer.position(this.buffer.position() + length);
+        return slice;
+    }
+
+    public void getLongs(long[] values) throws IOException {
+        this.ensure(this.checkLength(values.length) * (long) Long.BYTES);
+        this.buffer.asLongBuffer().get(values);
+        this.buffer.position(this.buffer.position() + values.length * Long.BYTES);
+    }
+
+    public void getInts(int[] values) throws IOException {
+        this.ensure(this.checkLength(values.length) * (long) Integer.BYTES);
+        this.buffer.asIntBuffer().get(values);
+        this.buffer.position(this.buffer.position() + values.length * Integer.BYTES);
+    }
+
+    public void getBytes(byte[] values) throws IOException {
+        this.ensure(this.checkLength(values.length));
+        this.buffer.get(values);
+    }
+
+    public void getBooleans(boolean[] values) throws IOException {
+        this.ensure(this.checkLength(values.length));
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.buffer.get() != 0;
+        }
+    }
+
+    private int checkLength(int expected) throws IOException {
+        int length = this.getInt();
+        if (length != expected) {
+            throw new IOException("Checkpoint holds " + length + " values where " + expected + " were expected");
+        }
+        return length;
+    }
+
+    private void ensure(long bytes) throws IOException {
+        if (bytes < 0 || this.buffer.remaining() < bytes) {
+            throw new IOException("Checkpoint ends part way through its state");
+        }
+    }
+}
@@ -0,0 +1,323 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the private caches of several cores coherent with the MESI protocol. Each private cache keeps the state of its lines, every
+ * private level of a core holding a line giving it the same state, and a directory at the shared levels records which cores hold
+ * each line so that a write only has to snoop the cores that have a copy. Lines are tracked at the line size of the private caches,
+ * which must all be the same.
+ * A write to a line other cores hold invalidates their copies, an upgrade when the writing core already had a shared copy, and a
+ * read of a line another core holds exclusively or modified turns both copies shared, a modified copy being written back on the way.
+ * A miss on a line the core last lost to another core's write is counted as a coherence miss
+ */
+class Coherence {
+    static final int MAX_CORES = 64;        // The directory keeps the cores holding a line as the bits of a long
+
+    private final Cache[][] levels;         // The private caches of each core, from the first level to the last
+    private final int offsetBitShift;       // The number of bits to right shift to turn an address into a line number
+    private final Directory directory = new Directory(1 << 16);
+    private final long[] invalidations;     // The copies each core lost to other cores' writes
+    private final long[] upgrades;          // The writes by each core to lines it held shared
+    private final long[] coherenceMisses;   // The misses of each core on lines it last lost to another core's write
+    private final long[] writeBacks;        // The modified lines leaving each core, either evicted or flushed for another core
+
+    /**
+     * Starts keeping the MESI state of every line in the private caches of the cores
+     * @param privates The private levels of each core, before any access
+     */
+    public Coherence(Hierarchy[] privates) {
+        if (privates.length > MAX_CORES) {
+            throw new IllegalArgumentException("Coherence is modelled for at most " + MAX_CORES + " cores");
+        }
+        this.levels = new Cache[privates.length][];
+        for (int i = 0; i < privates.length; i++) {
+            this.levels[i] = privates[i].getCaches();
+            for (Cache cache : this.levels[i]) {
+                if (cache.getLineSize() != this.levels[0][0].getLineSize()) {
+                    throw new IllegalArgumentException("Every private cache needs the same line size for coherence to be modelled");
+                }
+                cache.enableCoherence();
+            }
+        }
+        this.offsetBitShift = this.levels[0][0].getOffsetBitShift();
+        this.invalidations = new long[privates.length];
+        this.upgrades = new long[privates.length];
+        this.coherenceMisses = new long[privates.length];
+        this.writeBacks = new long[privates.length];
+    }
+
+    public long[] getInvalidations() {
+        return this.invalidations;
+    }
+
+    public long[] getUpgrades() {
+        return this.upgrades;
+    }
+
+    public long[] getCoherenceMisses() {
+        return this.coherenceMisses;
+    }
+
+    public long[] getWriteBacks() {
+        return this.writeBacks;
+    }
+
+    /**
+     * Simulates an access by a core to its private caches, going through each level until one hits and snooping the other cores
+     * when the access needs a copy or permission it does not have
+     * @param core      The core making the access
+     * @param memAddr   The line aligned address
+     * @param write     Whether the access is a write
+     * @return          Whether the access missed in every private level, and so goes on to the shared levels
+     */
+    public boolean access(int core, long memAddr, boolean write) {
+        Cache[] caches = this.levels[core];
+        memAddr = caches[0].tagged(memAddr);
+        long line = memAddr >> this.offsetBitShift;
+        byte state = Cache.INVALID;
+        int level = 0;
+        while (level < caches.length && (state = caches[level].lookupState(memAddr)) == Cache.INVALID) {
+            level++;
+        }
+        boolean miss = state == Cache.INVALID;
+        if (miss) {
+            int slot = this.directory.find(line);
+            long sharers = slot < 0 ? 0 : this.directory.getSharers(slot);
+            long lost = slot < 0 ? 0 : this.directory.getLost(slot);
+            long self = 1L << core;
+            if ((lost & self) != 0) {
+                this.coherenceMisses[core]++;
+                lost &= ~self;
+            }
+            long others = sharers & ~self;
+            if (write) {
+                lost |= this.invalidate(others, memAddr);
+                sharers = self;
+                state = Cache.MODIFIED;
+            }
+            else if (others != 0) {
+                this.share(others, memAddr);
+                sharers |= self;
+                state = Cache.SHARED;
+            }
+            else {
+                sharers = self;
+                state = Cache.EXCLUSIVE;
+            }
+            this.directory.put(line, sharers, lost);
+        }
+        else if (write && state != Cache.MODIFIED) {
+            if (state == Cache.SHARED) {
+                this.upgrades[core]++;
+                int slot = this.directory.find(line);
+                long lost = this.directory.getLost(slot) | this.invalidate(this.directory.getSharers(slot) & ~(1L << core), memAddr);
+                this.directory.put(line, 1L << core, lost);
+            }
+            state = Cache.MODIFIED;
+            for (int j = level; j < caches.length; j++) {
+                caches[j].snoop(memAddr, state);
+            }
+        }
+        // the levels that missed take the line in its new state
+        for (int j = 0; j < level; j++) {
+            long victim = caches[j].fillState(memAddr, state);
+            if (victim >= 0 && caches[j].victimState != Cache.INVALID) {
+                this.evicted(core, j, victim, caches[j].victimState);
+            }
+        }
+        return miss;
+    }
+
+    /**
+     * Invalidates the copies of a line held by other cores, as a core is about to write it
+     * @param cores     The cores holding the line, one bit per core
+     * @param memAddr   The line aligned address
+     * @return          The cores that held a copy, one bit per core
+     */
+    private long invalidate(long cores, long memAddr) {
+        long invalidated = 0;
+        while (cores != 0) {
+            int core = Long.numberOfTrailingZeros(cores);
+            cores &= cores - 1;
+            byte old = Cache.INVALID;
+            for (Cache cache : this.levels[core]) {
+                old = (byte) Math.max(old, cache.snoop(memAddr, Cache.INVALID));
+            }
+            if (old != Cache.INVALID) {
+                this.invalidations[core]++;
+                if (old == Cache.MODIFIED) {
+                    this.writeBacks[core]++;
+                }
+                invalidated |= 1L << core;
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Turns the copies of a line held by other cores shared, as a core is about to read it. A modified copy is written back first
+     * @param cores     The cores holding the line, one bit per core
+     * @param memAddr   The line aligned address
+     */
+    private void share(long cores, long memAddr) {
+        while (cores != 0) {
+            int core = Long.numberOfTrailingZeros(cores);
+            cores &= cores - 1;
+            byte old = Cache.INVALID;
+            for (Cache cache : this.levels[core]) {
+                old = (byte) Math.max(old, cache.snoop(memAddr, Cache.SHARED));
+            }
+            if (old == Cache.MODIFIED) {
+                this.writeBacks[core]++;
+            }
+        }
+    }
+
+    /**
+     * Handles a line evicted from one of a core's private levels, the core giving up the line once no other private level holds it
+     * @param core      The core
+     * @param level     The level the line was evicted from
+     * @param memAddr   The line aligned address of the evicted line
+     * @param state     The state the evicted line was in
+     */
+    private void evicted(int core, int level, long memAddr, byte state) {
+        Cache[] caches = this.levels[core];
+        for (int j = 0; j < caches.length; j++) {
+            if (j != level && caches[j].stateOf(memAddr) != Cache.INVALID) {
+                return;
+            }
+        }
+        if (state == Cache.MODIFIED) {
+            this.writeBacks[core]++;
+        }
+        long line = memAddr >> this.offsetBitShift;
+        int slot = this.directory.find(line);
+        if (slot >= 0) {
+            this.directory.put(line, this.directory.getSharers(slot) & ~(1L << core), this.directory.getLost(slot));
+        }
+    }
+}
+
+/**
+ * The directory of a coherent multi-core run, mapping each line number held by a private cache to the cores holding it, along with
+ * the cores that lost the line to another core's write and have not missed on it since. Kept as an open addressing table over
+ * primitive arrays that grows when half full, an entry being removed once no core holds the line or has lost it, so the directory
+ * only grows with the lines in the private caches and the lines written out from under a core
+ */
+class Directory {
+    private static final long EMPTY = Long.MIN_VALUE;   // Marks a free slot, line numbers never being negative
+    private long[] lines;
+    private long[] sharers;     // One bit for each core holding the line
+    private long[] lost;        // One bit for each core whose copy of the line was invalidated by another core's write
+    private int mask;
+    private int size;
+
+    /**
+     * Creates an empty directory
+     * @param capacity The number of lines expected, the directory only growing once it holds more than this
+     */
+    public Directory(int capacity) {
+        int length = Math.max(16, Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1);
+        this.lines = new long[length];
+        this.sharers = new long[length];
+        this.lost = new long[length];
+        this.mask = length - 1;
+        Arrays.fill(this.lines, EMPTY);
+    }
+
+    /**
+     * Finds the slot of a line, which stays valid until the next call to put
+     * @param line  The line number
+     * @return      The slot, or -1 if no core holds or has lost the line
+     */
+    public int find(long line) {
+        int slot = LongHashSet.mix(line) & this.mask;
+        while (this.lines[slot] != EMPTY) {
+            if (this.lines[slot] == line) {
+                return slot;
+            }
+            slot = slot + 1 & this.mask;
+        }
+        return -1;
+    }
+
+    public long getSharers(int slot) {
+        return this.sharers[slot];
+    }
+
+    public long getLost(int slot) {
+        return this.lost[slot];
+    }
+
+    /**
+     * Sets the cores holding a line and the cores that lost it, removing the line's entry when both are empty
+     * @param line      The line number
+     * @param sharers   One bit for each core holding the line
+     * @param lost      One bit for each core that lost the line to another core's write
+     */
+    public void put(long line, long sharers, long lost) {
+        int slot = LongHashSet.mix(line) & this.mask;
+        while (this.lines[slot] != EMPTY && this.lines[slot] != line) {
+            slot = slot + 1 & this.mask;
+        }
+        if (sharers == 0 && lost == 0) {
+            if (this.lines[slot] == line) {
+                this.remove(slot);
+            }
+            return;
+        }
+        this.sharers[slot] = sharers;
+        this.lost[slot] = lost;
+        if (this.lines[slot] == EMPTY) {
+            this.lines[slot] = line;
+            if (++this.size * 2 > this.lines.length) {
+                this.grow();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lines in the directory
+     * @return An integer
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Empties a slot, moving back any later entry whose probe sequence passes through it so that no tombstones build up
+     * @param slot The slot to empty
+     */
+    private void remove(int slot) {
+        int free = slot;
+        int next = free + 1 & this.mask;
+        while (this.lines[next] != EMPTY) {
+            int home = LongHashSet.mix(this.lines[next]) & this.mask;
+            if ((next - home & this.mask) >= (next - free & this.mask)) {
+                this.lines[free] = this.lines[next];
+                this.sharers[free] = this.sharers[next];
+                this.lost[free] = this.lost[next];
+                free = next;
+            }
+            next = next + 1 & this.mask;
+        }
+        this.lines[free] = EMPTY;
+        this.size--;
+    }
+
+    private void grow() {
+        long[] oldLines = this.lines;
+        long[] oldSharers = this.sharers;
+        long[] oldLost = this.lost;
+        this.lines = new long[oldLines.length * 2];
+        this.sharers = new long[oldLines.length * 2];
+        this.lost = new long[oldLines.length * 2];
+        this.mask = this.lines.length - 1;
+        this.size = 0;
+        Arrays.fill(this.lines, EMPTY);
+        for (int i = 0; i < oldLines.length; i++) {
+            if (oldLines[i] != EMPTY) {
+                this.put(oldLines[i], oldSharers[i], oldLost[i]);
+            }
+        }
+    }
+}
@@ -1,39 +1,212 @@
-// Class to represent a node in the TreeSet used to store the nodes for a given frequency
-class LFUNode {
-    private final int cacheLine;    // The cache line index for the current node
-    private int freq;               // The frequency that the cache line has been used in the linked list
+import java.util.Arrays;
+
+// Open addressing hash tables over primitive longs, used where a java.util collection would box every key
+
+/**
+ * A set of longs using linear probing, growing when it is half full
+ */
+class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;   // Marks a free slot, the key itself being tracked separately
+    private long[] keys;
+    private int size;
+    private boolean containsEmpty;                      // Whether EMPTY has been added as a key
+
+    /**
+     * Creates an empty set
+     * @param capacity The number of keys expected, the table starting at twice this rounded up to a power of two
+     */
+    public LongHashSet(int capacity) {
+        this.keys = new long[Math.max(16, Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1)];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /**
+     * Adds a key to the set
+     * @param key   The key to add
+     * @return      Whether the key was not already in the set
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            boolean added = !this.containsEmpty;
+            this.containsEmpty = true;
+            return added;
+        }
+        long[] keys = this.keys;
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = slot + 1 & mask;
+        }
+        keys[slot] = key;
+        if (++this.size * 2 > keys.length) {
+            this.grow();
+        }
+        return true;
+    }
 
     /**
-     * Constructor to create a new node in the TreeSet to store the cache line index and frequency that that cache line has been accessed
-     * @param cacheLine The index of the cache line to store
-     * @param freq      The frequency of how much this cache line has been used
+     * Returns whether a key is in the set
+     * @param key   The key to look for
+     * @return      A boolean
      */
-    public LFUNode(int cacheLine, int freq) {
-        this.cacheLine = cacheLine;
-        this.freq = freq;
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return this.containsEmpty;
+        }
+        int mask = this.keys.length - 1;
+        int slot = mix(key) & mask;
+        while (this.keys[slot] != EMPTY) {
+            if (this.keys[slot] == key) {
+                return true;
+            }
+            slot = slot + 1 & mask;
+        }
+        return false;
     }
 
     /**
-     * Returns the index of the cache line stored by the current node
-     * @return  The cache line index stored by this node
+     * Returns the number of keys in the set
+     * @return An integer
      */
-    public int getCacheLine() {
-        return this.cacheLine;
+    public int size() {
+        return this.size + (this.containsEmpty ? 1 : 0);
+    }
+
+    private void grow() {
+        long[] old = this.keys;
+        this.keys = new long[old.length * 2];
+        Arrays.fill(this.keys, EMPTY);
+        this.size = 0;
+        for (long key : old) {
+            if (key != EMPTY) {
+                this.add(key);
+            }
+        }
     }
 
     /**
-     * Returns the frequency that this current node has been accessed
-     * @return The frequency that this node has been used
+     * Spreads the bits of a key so that keys differing only in their high bits land in different slots
+     * @param key   The key to hash
+     * @return      The hash
      */
-    public int getFreq() {
-        return this.freq;
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+}
+
+/**
+ * A map from longs to ints using linear probing, growing when it is half full.
+ * Removal shifts later entries of the probe sequence back so that no tombstones build up
+ */
+class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;   // Marks a free slot, so EMPTY itself cannot be used as a key
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Creates an empty map
+     * @param capacity The number of keys expected, the map only growing once it holds more than this
+     */
+    public LongIntHashMap(int capacity) {
+        int length = Math.max(16, Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) << 1);
+        this.keys = new long[length];
+        this.values = new int[length];
+        this.mask = length - 1;
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /**
+     * Returns the value for a key
+     * @param key       The key to look up
+     * @param missing   The value to return if the key is not in the map
+     * @return          The key's value, or missing
+     */
+    public int get(long key, int missing) {
+        int slot = LongHashSet.mix(key) & this.mask;
+        while (this.keys[slot] != EMPTY) {
+            if (this.keys[slot] == key) {
+                return this.values[slot];
+            }
+            slot = slot + 1 & this.mask;
+        }
+        return missing;
+    }
+
+    /**
+     * Sets the value for a key, adding the key if it is not in the map
+     * @param key   The key, which must not be Long.MIN_VALUE
+     * @param value The value
+     */
+    public void put(long key, int value) {
+        int slot = LongHashSet.mix(key) & this.mask;
+        while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+            slot = slot + 1 & this.mask;
+        }
+        if (this.keys[slot] == EMPTY) {
+            this.keys[slot] = key;
+            if (++this.size * 2 > this.keys.length) {
+                this.values[slot] = value;
+                this.grow();
+                return;
+            }
+        }
+        this.values[slot] = value;
+    }
+
+    /**
+     * Returns the number of keys in the map
+     * @return An integer
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        int[] oldValues = this.values;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new int[oldKeys.length * 2];
+        this.mask = this.keys.length - 1;
+        this.size = 0;
+        Arrays.fill(this.keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                this.put(oldKeys[i], oldValues[i]);
+            }
+        }
     }
 
     /**
-     * Sets the frequency of the current node to the frequency given
-     * @param freq  The frequency to set the current node to, an integer
+     * Removes a key from the map if it is there
+     * @param key The key to remove
      */
-    public void setFreq(int freq) {
-        this.freq = freq;
+    public void remove(long key) {
+        int slot = LongHashSet.mix(key) & this.mask;
+        while (this.keys[slot] != key) {
+            if (this.keys[slot] == EMPTY) {
+                return;
+            }
+            slot = slot + 1 & this.mask;
+        }
+        // moving back any later entry whose probe sequence passes through the freed slot
+        int free = slot;
+        int next = free + 1 & this.mask;
+        while (this.keys[next] != EMPTY) {
+            int home = LongHashSet.mix(this.keys[next]) & this.mask;
+            if ((next - home & this.mask) >= (next - free & this.mask)) {
+                this.keys[free] = this.keys[next];
+                this.values[free] = this.values[next];
+                free = next;
+            }
+            next = next + 1 & this.mask;
+        }
+        this.keys[free] = EMPTY;
+        this.size--;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Traces compressed with gzip, in either the text or the binary format, are recognised by the gzip magic number and read without
+ * being decompressed to disk first
+ */
+final class GzipTraceFormat {
+    static final int MAGIC = 0x1F8B;
+    static final int CHUNK_SIZE = 1 << 20;  // How many bytes of the decompressed trace are handed over at once
+
+    private GzipTraceFormat() {
+    }
+
+    /**
+     * Checks the first bytes of a file for the gzip magic number
+     * @param path  The path of the trace file
+     * @return      Whether the file is compressed with gzip
+     */
+    static boolean isGzip(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // reading until the magic number is complete or the file ends
+            }
+            return !magic.hasRemaining() && (magic.getShort(0) & 0xFFFF) == MAGIC;
+        }
+    }
+
+    /**
+     * Opens a reader for a gzip compressed trace, telling the format of the trace from its first decompressed bytes
+     * @param compressed    The compressed trace
+     * @param path          The path of the trace, for errors
+     * @return              A reader positioned before the first access of the trace
+     */
+    static TraceReader open(InputStream compressed, String path) throws IOException {
+        InputStream in = new GZIPInputStream(compressed, 1 << 16);
+        byte[] head = in.readNBytes(4);
+        if (head.length == 4 && ByteBuffer.wrap(head).getInt() == BinaryTraceFormat.MAGIC) {
+            // the records of a binary trace are relative to each other, so only the inflating is moved off the reading thread
+            return new BinaryTraceReader(new InflatingChannel(in, head), ByteBuffer.allocate(0), path);
+        }
+        return new GzipTraceReader(in, head);
+    }
+}
+
+/**
+ * Reads a gzip compressed text trace through a pipeline of threads, so that the thread simulating the trace never waits on
+ * inflating or parsing it. An inflater thread cuts the decompressed trace into chunks ending on a line break and deals them out
+ * round-robin to the parser threads. Each parser parses its chunks into batches of primitive arrays, of which it has two so that
+ * it can fill one while the other is being read, and the reader takes the batches back from the parsers in the same order.
+ */
+class GzipTraceReader extends TraceReader {
+    private static final int QUEUED_CHUNKS = 2;     // How many chunks each parser can have waiting
+
+    private final Thread inflater;
+    private final Parser[] parsers;
+    private final Thread[] parserThreads;
+    private final BlockingQueue<Chunk> freeChunks;  // Chunks that have been parsed, ready to be refilled
+    private volatile Throwable failure;             // The first exception thrown by the inflater or a parser
+    private Batch batch;                            // The batch being read, null before the first
+    private int index;                              // The position in the batch of the next access
+    private long batches;                           // The number of batches taken so far, telling which parser the next is from
+    private boolean ended;
+
+    /**
+     * Starts inflating and parsing a trace
+     * @param in    The decompressing stream
+     * @param head  Bytes already read from the start of the stream
+     */
+    public GzipTraceReader(InputStream in, byte[] head) {
+        int parserCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 2));
+        // enough chunks to fill every parser's queue as well as the one each is parsing, so the inflater only waits on full queues
+        int chunkCount = parserCount * (QUEUED_CHUNKS + 1) + 1;
+        this.freeChunks = new ArrayBlockingQueue<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            this.freeChunks.add(new Chunk());
+        }
+        this.parsers = new Parser[parserCount];
+        this.parserThreads = new Thread[parserCount];
+        for (int i = 0; i < parserCount; i++) {
+            this.parsers[i] = new Parser();
+            this.parserThreads[i] = new Thread(this.parsers[i], "trace-parser-" + i);
+            this.parserThreads[i].setDaemon(true);
+            this.parserThreads[i].start();
+        }
+        this.inflater = new Thread(() -> this.inflate(in, head), "trace-inflater");
+        this.inflater.setDaemon(true);
+        this.inflater.start();
+    }
+
+    /**
+     * Moves onto the next access of the current batch, taking the next batch once it runs out
+     * @return Whether there was another access
+     */
+    public boolean next() throws IOException {
+        while (this.batch == null || this.index == this.batch.count) {
+            if (!this.nextBatch()) {
+                return false;
+            }
+        }
+        Batch batch = this.batch;
+        int i = this.index++;
+        this.address = batch.addresses[i];
+        this.size = batch.sizes[i];
+        this.write = batch.writes[i];
+        this.core = batch.cores[i];
+        return true;
+    }
+
+    /**
+     * Hands the current batch back to its parser and takes the next one
+     * @return Whether there was another batch, false once the trace has ended
+     */
+    private boolean nextBatch() throws IOException {
+        if (this.ended) {
+            return false;
+        }
+        if (this.batch != null) {
+            this.parsers[(int) ((this.batches - 1) % this.parsers.length)].freeBatches.add(this.batch);
+        }
+        try {
+            this.batch = this.parsers[(int) (this.batches % this.parsers.length)].readyBatches.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the trace");
+        }
+        this.batches++;
+        this.index = 0;
+        if (this.batch.count < 0) {
+            this.ended = true;
+            this.batch = null;
+            if (this.failure instanceof IOException) {
+                throw (IOException) this.failure;
+            }
+            if (this.failure != null) {
+                throw new IOException("Reading the compressed trace failed", this.failure);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run by the inflater thread, cutting the decompressed trace into chunks of whole lines and dealing them out to the parsers.
+     * The end of the trace, or a failure, is passed on to every parser as an empty chunk
+     * @param in    The decompressing stream
+     * @param head  Bytes already read from the start of the stream
+     */
+    private void inflate(InputStream in, byte[] head) {
+        try {
+            byte[] carry = Arrays.copyOf(head, GzipTraceFormat.CHUNK_SIZE); // The start of a line cut off by the end of the last chunk
+            int carried = head.length;
+            long start = 0;
+            try (in) {
+                for (long n = 0; ; n++) {
+                    Chunk chunk = this.freeChunks.take();
+                    System.arraycopy(carry, 0, chunk.bytes, 0, carried);
+                    int length = carried + in.readNBytes(chunk.bytes, carried, chunk.bytes.length - carried);
+                    boolean last = length < chunk.bytes.length;
+                    int end = length;
+                    if (!last) {
+                        while (end > 0 && chunk.bytes[end - 1] != '\n') {
+                            end--;
+                        }
+                        if (end == 0) {
+                            throw new IOException("Trace line at byte " + start + " is longer than " + GzipTraceFormat.CHUNK_SIZE + " bytes");
+                        }
+                    }
+                    carried = length - end;
+                    System.arraycopy(chunk.bytes, end, carry, 0, carried);
+                    chunk.length = end;
+                    chunk.start = start;
+                    start += end;
+                    this.parsers[(int) (n % this.parsers.length)].chunks.put(chunk);
+                    if (last) {
+                        break;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            return;     // the reader was closed
+        }
+        catch (IOException | RuntimeException | Error e) {
+            this.failure = e;
+        }
+        try {
+            for (Parser parser : this.parsers) {
+                parser.chunks.put(Chunk.END);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the inflater and the parsers and closes the trace
+     */
+    public void close() throws IOException {
+        this.inflater.interrupt();
+        for (Thread thread : this.parserThreads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Bytes of the decompressed trace ending on a line break, unless they are the end of the trace
+     */
+    private static class Chunk {
+        static final Chunk END = new Chunk(0);
+
+        final byte[] bytes;
+        int length;
+        long start;     // Where the chunk starts in the decompressed trace
+
+        Chunk() {
+            this(GzipTraceFormat.CHUNK_SIZE);
+        }
+
+        Chunk(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+    }
+
+    /**
+     * The accesses parsed from a chunk, a count of -1 marking the end of the trace
+     */
+    private static class Batch {
+        static final Batch END = new Batch();
+        static {
+            END.count = -1;
+        }
+
+        long[] addresses = new long[GzipTraceFormat.CHUNK_SIZE / 16];
+        int[] sizes = new int[this.addresses.length];
+        boolean[] writes = new boolean[this.addresses.length];
+        int[] cores = new int[this.addresses.length];
+        int count;
+
+        /**
+         * Makes room for another access, chunks of very short lines holding more accesses than a batch starts out with
+         */
+        void grow() {
+            int capacity = this.addresses.length * 2;
+            this.addresses = Arrays.copyOf(this.addresses, capacity);
+            this.sizes = Arrays.copyOf(this.sizes, capacity);
+            this.writes = Arrays.copyOf(this.writes, capacity);
+            this.cores = Arrays.copyOf(this.cores, capacity);
+        }
+    }
+
+    /**
+     * A parser thread, parsing the chunks dealt to it with the text trace parser into one of its two batches
+     */
+    private class Parser implements Runnable {
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        private final BlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(3);
+        private final BlockingQueue<Batch> readyBatches = new ArrayBlockingQueue<>(3);
+        private final MappedTraceReader lines = new MappedTraceReader();
+
+        Parser() {
+            this.freeBatches.add(new Batch());
+            this.freeBatches.add(new Batch());
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk = this.chunks.take();
+                    if (chunk == Chunk.END) {
+                        this.readyBatches.put(Batch.END);
+                        return;
+                    }
+                    Batch batch = this.freeBatches.take();
+                    batch.count = 0;
+                    // after a failure the parser passes on empty batches so that the reader reaches the end marker
+                    if (GzipTraceReader.this.failure == null) {
+                        try {
+                            this.parse(chunk, batch);
+                        }
+                        catch (IOException | RuntimeException | Error e) {
+                            GzipTraceReader.this.failure = e;
+                            batch.count = 0;
+                        }
+                    }
+                    GzipTraceReader.this.freeChunks.put(chunk);
+                    this.readyBatches.put(GzipTraceReader.this.failure == null ? batch : Batch.END);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void parse(Chunk chunk, Batch batch) throws IOException {
+            MappedTraceReader lines = this.lines;
+            lines.parse(ByteBuffer.wrap(chunk.bytes, 0, chunk.length), chunk.start);
+            int n = 0;
+            while (lines.next()) {
+                if (n == batch.addresses.length) {
+                    batch.grow();
+                }
+                batch.addresses[n] = lines.getAddress();
+                batch.sizes[n] = lines.getSize();
+                batch.writes[n] = lines.isWrite();
+                batch.cores[n] = lines.getCore();
+                n++;
+            }
+            batch.count = n;
+        }
+    }
+}
+
+/**
+ * A channel over a decompressing stream that is inflated ahead on its own thread, for the binary format whose records have to be
+ * decoded in order. The inflated bytes are handed over in chunks through a bounded queue
+ */
+class InflatingChannel implements ReadableByteChannel {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final int CHUNKS = 4;
+
+    private final Thread inflater;
+    private final BlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<ByteBuffer> readyChunks = new ArrayBlockingQueue<>(CHUNKS + 2);  // with room for the head and the end
+    private volatile IOException failure;
+    private ByteBuffer chunk;       // The chunk being read from, null before the first
+    private boolean open = true;
+
+    /**
+     * Starts inflating the stream
+     * @param in    The decompressing stream
+     * @param head  Bytes already read from the start of the stream, which the channel starts with
+     */
+    public InflatingChannel(InputStream in, byte[] head) {
+        for (int i = 0; i < CHUNKS; i++) {
+            this.freeChunks.add(ByteBuffer.allocate(GzipTraceFormat.CHUNK_SIZE));
+        }
+        this.readyChunks.add(ByteBuffer.wrap(head));
+        this.inflater = new Thread(() -> this.inflate(in), "trace-inflater");
+        this.inflater.setDaemon(true);
+        this.inflater.start();
+    }
+
+    /**
+     * Run by the inflater thread, the end of the stream or a failure being passed on as an empty chunk
+     * @param in The decompressing stream
+     */
+    private void inflate(InputStream in) {
+        try {
+            try (in) {
+                while (true) {
+                    ByteBuffer chunk = this.freeChunks.take();
+                    int n = in.readNBytes(chunk.array(), 0, chunk.capacity());
+                    if (n == 0) {
+                        break;
+                    }
+                    chunk.clear().limit(n);
+                    this.readyChunks.put(chunk);
+                }
+            }
+            catch (IOException e) {
+                this.failure = e;
+            }
+            this.readyChunks.put(END);
+        }
+        catch (InterruptedException e) {
+            // the channel was closed
+        }
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (this.chunk == END) {
+            return -1;
+        }
+        try {
+            while (this.chunk == null || !this.chunk.hasRemaining()) {
+                if (this.chunk != null && this.chunk.capacity() == GzipTraceFormat.CHUNK_SIZE) {
+                    this.freeChunks.put(this.chunk);    // the head is not one of the chunks
+                }
+                this.chunk = this.readyChunks.take();
+                if (this.chunk == END) {
+                    if (this.failure != null) {
+                        throw this.failure;
+                    }
+                    return -1;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the trace");
+        }
+        int n = Math.min(dst.remaining(), this.chunk.remaining());
+        dst.put(this.chunk.array(), this.chunk.position(), n);
+        this.chunk.position(this.chunk.position() + n);
+        return n;
+    }
+
+    public boolean isOpen() {
+        return this.open;
+    }
+
+    public void close() {
+        this.open = false;
+        this.inflater.interrupt();
+    }
+}
@@ -0,0 +1,392 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A chain of caches built from a CacheList, the first cache being the one that the trace is fed into
+ */
+class Hierarchy {
+    static final int NINE = 0;          // Levels fill on every miss and evict independently, so a line can be in any of them
+    static final int INCLUSIVE = 1;     // Every level holds a superset of the one above, lines evicted below being invalidated above
+    static final int EXCLUSIVE = 2;     // A line is in at most one level, moving up on a hit and victims moving down a level
+
+    private final String name;
+    private final Cache[] caches;
+    private final int inclusion;
+    private final boolean writes;   // Whether reads and writes are told apart, which is the case once any cache gives a write_policy
+    private final boolean prefetching; // Whether any cache has a prefetcher
+    private Sampler sampler;    // Only present when the hierarchy is approximated from part of the trace
+
+    /**
+     * Creates the caches described by the given config and links each one to the next in the hierarchy
+     * @param name      The name of the hierarchy, used to tell hierarchies apart in a sweep
+     * @param config    The list of cache configs, from the first level to the last
+     */
+    public Hierarchy(String name, CacheList config) {
+        this.name = name;
+        this.caches = new Cache[config.getCaches().size()];
+        for (int i = 0; i < this.caches.length; i++) {
+            CacheConfig cache = config.getCaches().get(i);
+            switch (cache.getKind()) {
+                case "direct":
+                    this.caches[i] = new DirectMapped(cache.getName(), cache.getSize(), cache.getLine_size());
+                    break;
+                case "full":
+                    this.caches[i] = new NWayAssociative(cache.getName(), cache.getSize(), cache.getLine_size(), cache.getSize() / cache.getLine_size(), cache.getReplacement_policy());
+                    break;
+                default:
+                    // the kind is the set size followed by "way", e.g. 8way or 16way
+                    int digits = 0;
+                    while (digits < cache.getKind().length() && Character.isDigit(cache.getKind().charAt(digits))) {
+                        digits++;
+                    }
+                    int setSize = Integer.parseInt(cache.getKind().substring(0, digits));
+                    this.caches[i] = new NWayAssociative(cache.getName(), cache.getSize(), cache.getLine_size(), setSize, cache.getReplacement_policy());
+            }
+            if (i != 0) {
+                this.caches[i - 1].setChild(this.caches[i]);
+            }
+        }
+
+        boolean writes = false;
+        for (CacheConfig cache : config.getCaches()) {
+            writes |= cache.getWrite_policy() != null;
+        }
+        this.writes = writes;
+        if (writes) {
+            for (int i = 0; i < this.caches.length; i++) {
+                CacheConfig cache = config.getCaches().get(i);
+                boolean writeBack;
+                if (cache.getWrite_policy() == null || cache.getWrite_policy().equals("write_back")) {
+                    writeBack = true;
+                }
+                else if (cache.getWrite_policy().equals("write_through")) {
+                    writeBack = false;
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown write_policy " + cache.getWrite_policy() + " for " + cache.getName());
+                }
+                boolean writeAllocate = cache.getWrite_allocate() != null ? cache.getWrite_allocate() : writeBack;
+                this.caches[i].setWritePolicy(writeBack, writeAllocate);
+            }
+        }
+
+        boolean prefetching = false;
+        for (int i = 0; i < this.caches.length; i++) {
+            CacheConfig cache = config.getCaches().get(i);
+            if (cache.getPrefetcher() != null) {
+                int sets = this.caches[i].getIndexMask() + 1;
+                this.caches[i].setPrefetcher(Prefetcher.create(cache.getPrefetcher(), cache.getPrefetch_degree(), cache.getName(), sets, this.caches[i].getLineCount() / sets));
+                prefetching = true;
+            }
+        }
+        this.prefetching = prefetching;
+
+        String inclusion = config.getInclusion() == null ? "nine" : config.getInclusion();
+        switch (inclusion) {
+            case "nine":
+                this.inclusion = NINE;
+                break;
+            case "inclusive":
+                this.inclusion = INCLUSIVE;
+                for (Cache cache : this.caches) {
+                    cache.setInclusive();
+                }
+                break;
+            case "exclusive":
+                this.inclusion = EXCLUSIVE;
+                if (prefetching) {
+                    throw new IllegalArgumentException("Prefetchers are not supported in exclusive hierarchies");
+                }
+                for (int i = 0; i < this.caches.length; i++) {
+                    CacheConfig cache = config.getCaches().get(i);
+                    if (this.caches[i].getLineSize() != this.getLineSize()) {
+                        throw new IllegalArgumentException("Every cache of an exclusive hierarchy needs the same line size");
+                    }
+                    if (writes && (cache.getWrite_policy() != null && !cache.getWrite_policy().equals("write_back") || Boolean.FALSE.equals(cache.getWrite_allocate()))) {
+                        throw new IllegalArgumentException("Every cache of an exclusive hierarchy needs to be write_back and write_allocate");
+                    }
+                    this.caches[i].enableInvalidation();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown inclusion " + inclusion + ", expected nine, inclusive or exclusive");
+        }
+        if (config.getCoherence() != null && !config.getCoherence().equals("none")) {
+            throw new IllegalArgumentException("Coherence is only modelled in multi-core runs");
+        }
+    }
+
+    /**
+     * Returns the name of the hierarchy
+     * @return A string
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns the caches of the hierarchy, from the first level to the last
+     * @return An array of caches
+     */
+    public Cache[] getCaches() {
+        return this.caches;
+    }
+
+    /**
+     * Returns the line size of the first cache, which decides how the trace is split into cache lines
+     * @return An integer
+     */
+    public int getLineSize() {
+        return this.caches[0].getLineSize();
+    }
+
+    /**
+     * Returns whether the hierarchy models writes, rather than treating every access as a read
+     * @return A boolean
+     */
+    public boolean isModellingWrites() {
+        return this.writes;
+    }
+
+    /**
+     * Returns whether every level holds a superset of the levels above it
+     * @return A boolean
+     */
+    public boolean isInclusive() {
+        return this.inclusion == INCLUSIVE;
+    }
+
+    /**
+     * Returns whether any cache in the hierarchy has a prefetcher
+     * @return A boolean
+     */
+    public boolean isPrefetching() {
+        return this.prefetching;
+    }
+
+    /**
+     * Returns whether the accesses each level passes on only depend on the levels above it, so that the stream leaving the first
+     * levels can be recorded and replayed, which holds for nine hierarchies without prefetchers simulating every access
+     * @return A boolean
+     */
+    public boolean isMemoizable() {
+        return this.inclusion == NINE && !this.prefetching && this.sampler == null;
+    }
+
+    /**
+     * Starts classifying the misses of every cache into compulsory, capacity and conflict misses
+     */
+    public void enableMissClassification() {
+        for (Cache cache : this.caches) {
+            cache.getStats().enableClassification(cache.getLineCount());
+        }
+    }
+
+    /**
+     * Feeds a block of line aligned addresses into the first cache in order
+     * @param lines The line aligned addresses
+     * @param count How many of the addresses are in use
+     */
+    public void simulate(long[] lines, int count) {
+        if (this.sampler != null) {
+            this.sampler.simulate(lines, count);
+            return;
+        }
+        this.caches[0].checkCache(lines, count); // each level checks the whole block and passes its misses on to the next level as a block
+    }
+
+    /**
+     * Feeds a block of line aligned reads and writes into the first cache in order, the writes being ignored unless the hierarchy models them
+     * @param lines The line aligned addresses
+     * @param kinds Whether each address is a Cache.READ or a Cache.WRITE
+     * @param count How many of the addresses are in use
+     */
+    public void simulate(long[] lines, byte[] kinds, int count) {
+        if (this.inclusion == INCLUSIVE || this.prefetching) {
+            // an eviction below changes the levels above straight away, and prefetches interleave with demand accesses,
+            // so each access goes all the way down before the next
+            for (int i = 0; i < count; i++) {
+                this.caches[0].access(lines[i], this.writes ? kinds[i] : Cache.READ);
+            }
+            return;
+        }
+        if (this.inclusion == EXCLUSIVE) {
+            for (int i = 0; i < count; i++) {
+                this.accessExclusive(lines[i], this.writes && kinds[i] == Cache.WRITE);
+            }
+            return;
+        }
+        if (this.writes) {
+            this.caches[0].checkCache(lines, kinds, count);
+            return;
+        }
+        this.simulate(lines, count);
+    }
+
+    /**
+     * Looks a line up in an exclusive hierarchy. The levels are searched in order, a hit below the first level moving the line up
+     * out of that level, and the line is then loaded into the first level. The victim of each level moves down into the next,
+     * until one lands in a free cache line or leaves the last level for main memory, being written back if it is dirty
+     * @param memAddr   The line aligned address
+     * @param write     Whether the access is a write
+     */
+    private void accessExclusive(long memAddr, boolean write) {
+        Cache[] caches = this.caches;
+        if (caches[0].lookup(memAddr, write)) {
+            return;
+        }
+        boolean dirty = write;
+        int level = 1;
+        while (level < caches.length && !caches[level].lookup(memAddr, false)) {
+            level++;
+        }
+        Cache last = caches[caches.length - 1];
+        if (level < caches.length) {
+            dirty |= caches[level].removeLine(memAddr);
+        }
+        else {
+            last.readsOut++;
+        }
+        long line = memAddr;
+        for (int i = 0; i < caches.length; i++) {
+            line = caches[i].place(line, dirty, i == 0);    // only the first level loads the demanded line, the rest take victims
+            if (line < 0) {
+                return;
+            }
+            dirty = caches[i].victimDirty;
+        }
+        if (dirty) {
+            last.writesOut++;
+        }
+    }
+
+    /**
+     * Approximates the hierarchy from part of the trace rather than simulating all of it
+     * @param sampler The sampler deciding which accesses are simulated
+     */
+    public void setSampler(Sampler sampler) {
+        if (this.writes) {
+            throw new IllegalArgumentException("Sampling does not model writes, so it cannot be used with a write_policy");
+        }
+        if (this.inclusion != NINE || this.prefetching) {
+            throw new IllegalArgumentException("Sampling only supports nine hierarchies without prefetchers");
+        }
+        this.sampler = sampler;
+    }
+
+    /**
+     * Returns the sampler of the hierarchy
+     * @return The sampler, or null if every access is simulated
+     */
+    public Sampler getSampler() {
+        return this.sampler;
+    }
+
+    /**
+     * Called once the whole trace has been fed in
+     */
+    public void finish() {
+        if (this.sampler != null) {
+            this.sampler.finish();
+        }
+    }
+
+    /**
+     * Prints a json of the hits and misses for each cache along with the number of main memory accesses
+     * @param out       The stream to print to
+     * @param indent    The indentation of the json's braces
+     * @param named     Whether to include the name of the hierarchy
+     * @param detailed  Whether to include the evictions, miss classification and per set counts of each cache
+     */
+    public void printJson(PrintStream out, String indent, boolean named, boolean detailed) {
+        out.println(indent + "{");
+        if (named) {
+            out.println(indent + "\t\"name\": \"" + this.name + "\",");
+        }
+        Cache last = this.caches[this.caches.length - 1];
+        if (this.inclusion != NINE) {
+            out.println(indent + "\t\"inclusion\": \"" + (this.inclusion == INCLUSIVE ? "inclusive" : "exclusive") + "\",");
+        }
+        if (this.writes) {
+            // the last level's reads and writes all go to main memory, whether fetches, write backs or writes passed through
+            out.println(indent + "\t\"main_memory_accesses\": " + (last.getReadsOut() + last.getWritesOut()) + ",");
+            out.println(indent + "\t\"main_memory_reads\": " + last.getReadsOut() + ",");
+            out.println(indent + "\t\"main_memory_writes\": " + last.getWritesOut() + ",");
+            out.println(indent + "\t\"main_memory_bytes\": " + (last.getReadsOut() + last.getWritesOut()) * last.getLineSize() + ",");
+        }
+        else {
+            out.println(indent + "\t\"main_memory_accesses\": " + last.getMisses() + ",");
+        }
+        double[] estimated = this.sampler != null ? this.sampler.estimatedAccesses() : null;
+        if (estimated != null) {
+            out.println(indent + "\t\"estimated_main_memory_accesses\": " + Math.round(estimated[this.caches.length]) + ",");
+        }
+        out.println(indent + "\t\"caches\": [");
+        for (int i = 0; i < this.caches.length; i++) {
+            out.println(indent + "\t\t{");
+            out.println(indent + "\t\t\t\"name\": \"" + this.caches[i].getName() + "\",");
+            out.println(indent + "\t\t\t\"hits\": \"" + this.caches[i].getHits() + "\",");
+            out.print(indent + "\t\t\t\"misses\": \"" + this.caches[i].getMisses() + "\"");
+            if (this.writes) {
+                out.println(",");
+                out.print(indent + "\t\t\t\"write_backs\": " + this.caches[i].getWriteBacks());
+            }
+            if (this.inclusion == INCLUSIVE) {
+                out.println(",");
+                out.print(indent + "\t\t\t\"back_invalidations\": " + this.caches[i].getBackInvalidations());
+            }
+            if (this.caches[i].getPrefetcher() != null) {
+                Cache cache = this.caches[i];
+                long useful = cache.getUsefulPrefetches();
+                out.println(",");
+                out.println(indent + "\t\t\t\"prefetches\": " + cache.getPrefetches() + ",");
+                out.println(indent + "\t\t\t\"useful_prefetches\": " + useful + ",");
+                out.println(indent + "\t\t\t\"useless_prefetches\": " + cache.getUselessPrefetches() + ",");
+                out.println(indent + "\t\t\t\"pollution_misses\": " + cache.getPollutionMisses() + ",");
+                // accuracy is the share of prefetches that were used, coverage the share of would be misses that prefetching removed
+                out.println(indent + "\t\t\t\"prefetch_accuracy\": " + jsonNumber(cache.getPrefetches() == 0 ? Double.NaN : (double) useful / cache.getPrefetches()) + ",");
+                out.print(indent + "\t\t\t\"prefetch_coverage\": " + jsonNumber(useful + cache.getMisses() == 0 ? Double.NaN : (double) useful / (useful + cache.getMisses())));
+            }
+            if (detailed) {
+                CacheStats stats = this.caches[i].getStats();
+                out.println(",");
+                out.println(indent + "\t\t\t\"evictions\": " + stats.getEvictions() + ",");
+                if (stats.isClassifying()) {
+                    out.println(indent + "\t\t\t\"compulsory_misses\": " + stats.getCompulsoryMisses() + ",");
+                    out.println(indent + "\t\t\t\"capacity_misses\": " + stats.getCapacityMisses() + ",");
+                    out.println(indent + "\t\t\t\"conflict_misses\": " + stats.getConflictMisses() + ",");
+                }
+                out.println(indent + "\t\t\t\"set_hits\": " + Arrays.toString(stats.getSetHits()) + ",");
+                out.println(indent + "\t\t\t\"set_misses\": " + Arrays.toString(stats.getSetMisses()) + ",");
+                out.print(indent + "\t\t\t\"set_evictions\": " + Arrays.toString(stats.getSetEvictions()));
+            }
+            if (estimated != null) {
+                double[] missRate = this.sampler.missRate(i);
+                out.println(",");
+                out.println(indent + "\t\t\t\"estimated_hits\": " + Math.round(estimated[i] - estimated[i + 1]) + ",");
+                out.println(indent + "\t\t\t\"estimated_misses\": " + Math.round(estimated[i + 1]) + ",");
+                out.println(indent + "\t\t\t\"estimated_miss_rate\": " + jsonNumber(missRate[0]) + ",");
+                out.print(indent + "\t\t\t\"miss_rate_ci95\": [" + jsonNumber(missRate[0] - missRate[1]) + ", " + jsonNumber(missRate[0] + missRate[1]) + "]");
+            }
+            out.println();
+            out.print(indent + "\t\t}");
+            if (i != this.caches.length - 1){
+                out.println(",");
+            }
+            else{
+                out.println();
+            }
+        }
+        out.println(indent + "\t]");
+        out.print(indent + "}");
+    }
+
+    /**
+     * Formats a double for the json, which has no way of writing NaN
+     * @param value The value to format
+     * @return      The value, or null if it is not a number
+     */
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) ? "null" : String.format("%.6f", value);
+    }
+}
@@ -1,8 +1,12 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.google.gson.Gson;
@@ -18,7 +22,44 @@ class CacheList {
         this.caches = caches;
     }
 
+    public String getName() {
+        return this.name;
+    }
+
+    public List<CacheList> getHierarchies() {
+        return this.hierarchies;
+    }
+
+    public String getInclusion() {
+        return this.inclusion;
+    }
+
+    public void setInclusion(String inclusion) {
+        this.inclusion = inclusion;
+    }
+
+    public int getShared_levels() {
+        return this.shared_levels;
+    }
+
+    public void setShared_levels(int shared_levels) {
+        this.shared_levels = shared_levels;
+    }
+
+    public String getCoherence() {
+        return this.coherence;
+    }
+
+    public void setCoherence(String coherence) {
+        this.coherence = coherence;
+    }
+
+    String name;
     List<CacheConfig> caches;
+    String inclusion;               // One of nine, inclusive, and exclusive, defaulting to nine
+    int shared_levels;              // In multi-core runs, how many of the last caches are shared between the cores, defaulting to 1
+    String coherence;               // In multi-core runs, either none (the default) or mesi
+    List<CacheList> hierarchies;    // Only present in sweep configs, each entry describing a whole hierarchy
 
 }
 
@@ -28,6 +69,10 @@ class CacheConfig {
     int line_size;
     String kind;
     String replacement_policy;
+    String write_policy;        // Either write_back or write_through, writes only being modelled when a cache in the hierarchy gives one
+    Boolean write_allocate;     // Defaults to true for write_back caches and false for write_through caches
+    String prefetcher;          // One of next_line, stride, and stream, or null for no prefetching
+    int prefetch_degree;        // How many lines the prefetcher loads each time, 0 for the prefetcher's default
 
     public String getName() {
         return this.name;
@@ -65,80 +110,387 @@ class CacheConfig {
         return this.replacement_policy;
     }
 
+    public void setReplacement_policy(String replacement_policy) {
+        this.replacement_policy = replacement_policy;
+    }
+
+    public String getWrite_policy() {
+        return this.write_policy;
+    }
+
+    public void setWrite_policy(String write_policy) {
+        this.write_policy = write_policy;
+    }
+
+    public String getPrefetcher() {
+        return this.prefetcher;
+    }
+
+    public void setPrefetcher(String prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    public int getPrefetch_degree() {
+        return this.prefetch_degree;
+    }
+
+    public void setPrefetch_degree(int prefetch_degree) {
+        this.prefetch_degree = prefetch_degree;
+    }
+
+    public Boolean getWrite_allocate() {
+        return this.write_allocate;
+    }
+
+    public void setWrite_allocate(Boolean write_allocate) {
+        this.write_allocate = write_allocate;
+    }
+
 }
 
 public class Main{
     public static void main(String[] args) {
-//        final long startTime = System.currentTimeMillis();
         try {
-            // How to parse a JSON file in Java
-            // https://stackoverflow.com/questions/19169754/parsing-nested-json-data-using-gson [12/02/2023]
-            Gson gson = new Gson();
-            // Opens the file given by the first parameter relative to the current working directory
-            Reader reader = Files.newBufferedReader(Paths.get(args[0]));
-            // Loading the json into a java object before creating the relevant caches and inserting them into the below array
-            CacheList cachesJson = gson.fromJson(reader, CacheList.class);
-            Cache[] caches = new Cache[cachesJson.getCaches().size()];
-            for (int i = 0; i < caches.length; i++) {
-                CacheConfig cache = cachesJson.getCaches().get(i);
-                switch (cache.getKind()) {
-                    case "direct":
-                        caches[i] = new DirectMapped(cache.getName(), cache.getSize(), cache.getLine_size());
+            // Options come before the positional arguments
+            int threads = 1;
+            int setShards = 1;
+            int cores = 0;
+            boolean stats = false;
+            int setSampling = 1;
+            long[] timeSampling = null;
+            String checkpointPath = null;
+            long checkpointInterval = 0;
+            String resumePath = null;
+            String warmStartPath = null;
+            long maxAccesses = Long.MAX_VALUE;
+            String missCache = null;
+            String resultCachePath = null;
+            long resultCacheSize = 256;     // in MB
+            long progressInterval = 0;      // in nanoseconds, 0 for no progress lines
+            int arg = 0;
+            while (arg < args.length && args[arg].startsWith("--")) {
+                switch (args[arg]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++arg]);
+                        break;
+                    case "--stats":
+                        stats = true;
+                        break;
+                    case "--sample-sets":
+                        setSampling = Integer.parseInt(args[++arg]);
+                        break;
+                    case "--sample-time":
+                        // period,warmup,measure in line accesses
+                        String[] window = args[++arg].split(",");
+                        timeSampling = new long[] {Long.parseLong(window[0]), Long.parseLong(window[1]), Long.parseLong(window[2])};
+                        break;
+                    case "--set-shards":
+                        setShards = Integer.parseInt(args[++arg]);
+                        break;
+                    case "--cores":
+                        cores = Integer.parseInt(args[++arg]);
+                        break;
+                    case "--checkpoint":
+                        checkpointPath = args[++arg];
                         break;
-                    case "full":
-                        caches[i] = new NWayAssociative(cache.getName(), cache.getSize(), cache.getLine_size(), cache.getSize() / cache.getLine_size(), cache.getReplacement_policy());
+                    case "--checkpoint-every":
+                        checkpointInterval = Long.parseLong(args[++arg]);
+                        break;
+                    case "--resume":
+                        resumePath = args[++arg];
+                        break;
+                    case "--warm-start":
+                        warmStartPath = args[++arg];
+                        break;
+                    case "--max-accesses":
+                        maxAccesses = Long.parseLong(args[++arg]);
+                        break;
+                    case "--miss-cache":
+                        missCache = args[++arg];
+                        break;
+                    case "--result-cache":
+                        resultCachePath = args[++arg];
+                        break;
+                    case "--result-cache-size":
+                        resultCacheSize = Long.parseLong(args[++arg]);
+                        break;
+                    case "--progress":
+                        progressInterval = (long) (Double.parseDouble(args[++arg]) * 1e9);
                         break;
                     default:
-                        int setSize = Character.getNumericValue(cache.getKind().charAt(0));
-                        caches[i] = new NWayAssociative(cache.getName(), cache.getSize(), cache.getLine_size(), setSize, cache.getReplacement_policy());
-                }
-                if (i != 0) {
-                    caches[i - 1].setChild(caches[i]);
+                        throw new IllegalArgumentException("Unknown option " + args[arg]);
                 }
+                arg++;
             }
-            reader.close();
-
-            // Reading the trace file given by the second argument relative to the current working directory line by line
-            FileReader trace = new FileReader(args[1]);
-            BufferedReader br = new BufferedReader(trace);
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] lineData = line.split(" ");
-                // Find the size of the memory block to find in the cache
-                int blockSize = Integer.parseInt(lineData[3]);
-                long memAddr = Long.parseLong(lineData[1], 16);
-                long endAddr = memAddr + blockSize;
-                // Check if the memory address is in cache, check the relevant cache lines to see if they contain the needed bytes for the cache
-                memAddr = memAddr - memAddr % caches[0].getLineSize();
-                // Goes through each cache line that this memory block would use in the cache and checks them to see if they hold the relevant bits for the current block
-                while (memAddr < endAddr) {
-                    caches[0].checkCache(memAddr); // Check cache will recursively seek the memory address in cache until it either gets it hit or reaches main memory
-                    memAddr += caches[0].getLineSize();
-                }
+            String configPath = args[arg];
+            String tracePath = args[arg + 1];
+            boolean checkpointing = checkpointPath != null || resumePath != null || warmStartPath != null || maxAccesses != Long.MAX_VALUE;
+            if (checkpointing && (threads > 1 || setShards > 1 || stats || setSampling > 1 || timeSampling != null || cores > 0 || args.length - arg > 2)) {
+                throw new IllegalArgumentException("Checkpoints and --max-accesses only work on single threaded runs without --stats or sampling");
+            }
+            if (missCache != null && (checkpointing || threads > 1 || setShards > 1 || stats || cores > 0 || args.length - arg > 2)) {
+                throw new IllegalArgumentException("--miss-cache only works on whole single threaded runs without --stats or checkpoints");
+            }
+            if (resultCachePath != null && checkpointing) {
+                throw new IllegalArgumentException("--result-cache cannot be used with checkpoints or --max-accesses");
+            }
+            if (progressInterval > 0 && (threads > 1 || setShards > 1 || cores > 0 || args.length - arg > 2)) {
+                throw new IllegalArgumentException("--progress only works on single threaded runs");
+            }
+            if (progressInterval > 0 && missCache != null) {
+                throw new IllegalArgumentException("--progress cannot be used with --miss-cache, whose replays do not read the trace");
+            }
+            boolean streamed = false;
+            boolean compressed = false;
+            for (int i = arg + 1; i < args.length; i++) {
+                streamed |= TraceReader.isStream(args[i]);
+                compressed |= !TraceReader.isStream(args[i]) && GzipTraceFormat.isGzip(args[i]);
             }
+            if (streamed && (checkpointPath != null || resumePath != null || warmStartPath != null || missCache != null || resultCachePath != null)) {
+                throw new IllegalArgumentException("Traces streamed from a pipe cannot be used with checkpoints, --miss-cache, or --result-cache");
+            }
+            if (compressed && (checkpointPath != null || resumePath != null || warmStartPath != null)) {
+                throw new IllegalArgumentException("Compressed traces cannot be checkpointed");
+            }
+            if (resumePath != null && warmStartPath != null) {
+                throw new IllegalArgumentException("--resume and --warm-start cannot be used together");
+            }
+            String[] tracePaths = Arrays.copyOfRange(args, arg + 1, args.length);
 
-            // Prints a json of the hits and misses for each cache along with the number of main memory accesses to stdout
-            System.out.println("{");
-            System.out.println("\t\"main_memory_accesses\": " + caches[caches.length - 1].getMisses() + ",");
-            System.out.println("\t\"caches\": [");
-            for (int i = 0; i < caches.length; i++) {
-                System.out.println("\t\t{");
-                System.out.println("\t\t\t\"name\": \"" + caches[i].getName() + "\",");
-                System.out.println("\t\t\t\"hits\": \"" + caches[i].getHits() + "\",");
-                System.out.println("\t\t\t\"misses\": \"" + caches[i].getMisses() + "\"");
-                System.out.print("\t\t}");
-                if (i != caches.length - 1){
-                    System.out.println(",");
+            // A run done before prints its stored output without reading the trace, any other run storing its output once done
+            ResultCache results = null;
+            String resultKey = null;
+            PrintStream out = System.out;
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (resultCachePath != null) {
+                results = new ResultCache(Paths.get(resultCachePath), resultCacheSize << 20);
+                resultKey = resultKey(results, configPath, tracePaths, cores, stats, setSampling, timeSampling);
+                byte[] stored = results.get(resultKey);
+                if (stored != null) {
+                    System.out.write(stored);
+                    System.out.flush();
+                    System.err.println("Found the results in " + resultCachePath);
+                    return;
                 }
-                else{
-                    System.out.println();
+                out = new PrintStream(output);
+            }
+
+            if (cores > 0 || tracePaths.length > 1) {
+                if (threads > 1 || setShards > 1 || stats || setSampling > 1 || timeSampling != null) {
+                    throw new IllegalArgumentException("Multi-core runs do not support --threads, --set-shards, --stats, or sampling");
                 }
+                runMultiCore(loadConfig(configPath), cores, tracePaths, out);
+            }
+            else {
+                simulate(configPath, tracePath, out, threads, setShards, stats, setSampling, timeSampling, checkpointPath, checkpointInterval,
+                        resumePath, warmStartPath, maxAccesses, missCache, progressInterval);
+            }
+            if (results != null) {
+                out.flush();
+                System.out.write(output.toByteArray());
+                System.out.flush();
+                results.put(resultKey, output.toByteArray());
             }
-            System.out.println("\t]");
-            System.out.println("}");
         }         
         catch (Exception e) {
             System.err.println(e);
         }
     }
+
+    /**
+     * Simulates a single trace through one hierarchy or a sweep of them, printing the results as a json
+     * @param configPath    The config, or a directory of configs for a sweep
+     * @param tracePath     The trace
+     * @param out           Where to print the results, the other parameters being the options parsed by main
+     */
+    private static void simulate(String configPath, String tracePath, PrintStream out, int threads, int setShards, boolean stats, int setSampling,
+            long[] timeSampling, String checkpointPath, long checkpointInterval, String resumePath, String warmStartPath, long maxAccesses,
+            String missCache, long progressInterval) throws IOException, InterruptedException {
+        boolean sweep = new File(configPath).isDirectory();
+        List<Hierarchy> hierarchies = new ArrayList<>();
+        if (sweep) {
+            // A directory holds one hierarchy per json file, each named after its file
+            for (File file : configFiles(configPath)) {
+                CacheList cachesJson = loadConfig(file.getPath());
+                hierarchies.add(new Hierarchy(file.getName().substring(0, file.getName().length() - 5), cachesJson));
+            }
+        }
+        else {
+            CacheList cachesJson = loadConfig(configPath);
+            if (cachesJson.getHierarchies() != null) {
+                // A sweep config lists several hierarchies under a single json
+                sweep = true;
+                for (int i = 0; i < cachesJson.getHierarchies().size(); i++) {
+                    CacheList hierarchy = cachesJson.getHierarchies().get(i);
+                    hierarchies.add(new Hierarchy(hierarchy.getName() != null ? hierarchy.getName() : "hierarchy_" + i, hierarchy));
+                }
+            }
+            else {
+                hierarchies.add(new Hierarchy(cachesJson.getName(), cachesJson));
+            }
+        }
+
+        if (stats) {
+            for (Hierarchy hierarchy : hierarchies) {
+                hierarchy.enableMissClassification();
+            }
+        }
+        if (setSampling > 1 || timeSampling != null) {
+            for (Hierarchy hierarchy : hierarchies) {
+                hierarchy.setSampler(timeSampling == null ? new Sampler(hierarchy, setSampling, 0, 0, 0)
+                        : new Sampler(hierarchy, setSampling, timeSampling[0], timeSampling[1], timeSampling[2]));
+            }
+        }
+
+        // Reading the trace file given by the second argument relative to the current working directory, a block at a time
+        TraceReader trace = TraceReader.open(tracePath);
+        Simulation simulation;
+        if (setShards > 1) {
+            simulation = new SetPartitionedSimulation(hierarchies, setShards);
+        }
+        else if (threads > 1) {
+            simulation = new ParallelSimulation(hierarchies, threads);
+        }
+        else if (missCache != null) {
+            simulation = new MemoizedSimulation(hierarchies, Paths.get(missCache), Paths.get(tracePath));
+        }
+        else {
+            simulation = new Simulation(hierarchies);
+        }
+        if (resumePath != null || warmStartPath != null) {
+            // carrying on from where the checkpoint left the trace, with the caches restored from it
+            Checkpoint checkpoint = Checkpoint.read(Paths.get(resumePath != null ? resumePath : warmStartPath));
+            if (resumePath != null) {
+                checkpoint.resume(hierarchies);
+            }
+            else {
+                for (Hierarchy hierarchy : hierarchies) {
+                    List<String> restored = checkpoint.warmStart(hierarchy);
+                    System.err.println("Warm started " + (restored.isEmpty() ? "no caches" : String.join(", ", restored))
+                            + (hierarchy.getName() != null ? " of " + hierarchy.getName() : ""));
+                }
+            }
+            checkpoint.seek(trace);
+            simulation.setStart(checkpoint.getAccesses());
+        }
+        if (checkpointPath != null) {
+            simulation.setCheckpoint(Paths.get(checkpointPath), checkpointInterval);
+        }
+        simulation.setLimit(maxAccesses);
+        if (progressInterval > 0) {
+            // Progress goes to stderr as json lines, stdout being kept for the results
+            simulation.setProgress(System.err, progressInterval);
+        }
+        final long startTime = System.nanoTime();
+        long accesses = simulation.run(trace);
+        trace.close();
+        for (Hierarchy hierarchy : hierarchies) {
+            hierarchy.finish();
+        }
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+        // Throughput goes to stderr so that stdout stays a valid json
+        System.err.printf("Simulated %d accesses in %.3f s (%.0f accesses/s)%n", accesses, seconds, accesses / seconds);
+
+        // Prints a json of the hits and misses for each cache along with the number of main memory accesses to stdout
+        if (sweep) {
+            out.println("{");
+            out.println("\t\"hierarchies\": [");
+            for (int i = 0; i < hierarchies.size(); i++) {
+                hierarchies.get(i).printJson(out, "\t\t", true, stats);
+                out.println(i != hierarchies.size() - 1 ? "," : "");
+            }
+            out.println("\t]");
+            out.println("}");
+        }
+        else {
+            hierarchies.get(0).printJson(out, "", false, stats);
+            out.println();
+        }
+    }
+
+    /**
+     * Simulates several cores with private caches sharing the last levels of the config, printing the results as a json
+     * @param config        The config of a single core's hierarchy
+     * @param cores         The number of cores for a trace with a core column, 0 to have one core per trace
+     * @param tracePaths    Either one trace with a core column, or one trace per core
+     * @param out           Where to print the results
+     */
+    private static void runMultiCore(CacheList config, int cores, String[] tracePaths, PrintStream out) throws IOException, InterruptedException {
+        if (config.getHierarchies() != null) {
+            throw new IllegalArgumentException("Multi-core runs take a single hierarchy rather than a sweep");
+        }
+        if (cores > 0 && tracePaths.length > 1 && cores != tracePaths.length) {
+            throw new IllegalArgumentException("--cores " + cores + " does not match the " + tracePaths.length + " traces given");
+        }
+        List<TraceReader> traces = new ArrayList<>();
+        try {
+            for (String path : tracePaths) {
+                traces.add(TraceReader.open(path));
+            }
+            MultiCoreSimulation simulation = new MultiCoreSimulation(config, tracePaths.length > 1 ? tracePaths.length : cores);
+            final long startTime = System.nanoTime();
+            long accesses = tracePaths.length > 1 ? simulation.run(traces) : simulation.run(traces.get(0));
+            final double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.err.printf("Simulated %d accesses in %.3f s (%.0f accesses/s)%n", accesses, seconds, accesses / seconds);
+            simulation.printJson(out);
+            out.println();
+        }
+        finally {
+            for (TraceReader trace : traces) {
+                trace.close();
+            }
+        }
+    }
+
+    /**
+     * Builds the key a run's output is stored under in the result cache, from the build of the simulator, the contents of the traces,
+     * the options changing the output, and the configs normalized by parsing them and writing them back out, so that formatting does not matter
+     * @param results   The result cache, which keeps the hashes of the traces
+     * @return          The key
+     */
+    private static String resultKey(ResultCache results, String configPath, String[] tracePaths, int cores, boolean stats, int setSampling,
+            long[] timeSampling) throws IOException {
+        StringBuilder key = new StringBuilder();
+        key.append("build ").append(ResultCache.buildHash()).append('\n');
+        for (String tracePath : tracePaths) {
+            key.append("trace ").append(results.traceHash(Paths.get(tracePath))).append('\n');
+        }
+        key.append("cores ").append(cores).append(" stats ").append(stats).append(" sample-sets ").append(setSampling)
+                .append(" sample-time ").append(Arrays.toString(timeSampling)).append('\n');
+        Gson gson = new Gson();
+        if (new File(configPath).isDirectory()) {
+            for (File file : configFiles(configPath)) {
+                key.append(file.getName()).append(' ').append(gson.toJson(loadConfig(file.getPath()))).append('\n');
+            }
+        }
+        else {
+            key.append(gson.toJson(loadConfig(configPath))).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Lists the json configs of a sweep directory in the order they are simulated
+     * @param directory The directory
+     * @return          The configs, sorted by name
+     */
+    static File[] configFiles(String directory) {
+        File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(".json"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Loads a cache config json into a java object
+     * @param path  The path of the json relative to the current working directory
+     * @return      The parsed config
+     */
+    static CacheList loadConfig(String path) throws IOException {
+        // How to parse a JSON file in Java
+        // https://stackoverflow.com/questions/19169754/parsing-nested-json-data-using-gson [12/02/2023]
+        Gson gson = new Gson();
+        try (Reader reader = Files.newBufferedReader(Paths.get(path))) {
+            return gson.fromJson(reader, CacheList.class);
+        }
+    }
 }
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs a sweep without simulating the same first levels twice. In a nine hierarchy without prefetchers the accesses leaving the first
+ * levels only depend on those levels and the trace, so the stream leaving every proper prefix of a hierarchy is recorded to a directory,
+ * and a later hierarchy whose first levels match a recorded prefix replays the stream into its lower levels instead of reading the trace.
+ * Hierarchies of the same sweep sharing first levels that have not been recorded yet are fed by the first of them as it goes,
+ * and the trace is not read at all when every hierarchy can be replayed
+ */
+class MemoizedSimulation extends Simulation {
+    private static final int REPLAY_CAPACITY = TraceBlock.CAPACITY * 2;
+
+    private final Path directory;           // Where the streams are kept
+    private final int[] firstLevel;         // The first level each hierarchy simulates itself, 0 for hierarchies fed from the trace
+    private final int[] leader;             // The hierarchy feeding each hierarchy its first simulated level, -1 for none
+    private final Path[] replays;           // The stream each hierarchy replays into its first simulated level, null for none
+    private final String[] replayKeys;
+    private final List<MissStreamWriter> writers = new ArrayList<>();
+    private final List<Cache[]> writerCaches = new ArrayList<>();   // The caches of the hierarchy each writer is recording
+    private final List<Integer> writerLevels = new ArrayList<>();   // The number of first levels each writer is recording
+
+    /**
+     * Plans which hierarchies replay recorded streams, which are fed by other hierarchies, and which streams are recorded
+     * @param hierarchies   The hierarchies of the sweep
+     * @param directory     The directory of recorded streams, created if missing
+     * @param trace         The path of the trace
+     */
+    public MemoizedSimulation(List<Hierarchy> hierarchies, Path directory, Path trace) throws IOException {
+        super(hierarchies);
+        this.directory = directory;
+        Files.createDirectories(directory);
+        int count = this.hierarchies.length;
+        this.firstLevel = new int[count];
+        this.leader = new int[count];
+        this.replays = new Path[count];
+        this.replayKeys = new String[count];
+        Set<String> recording = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            this.leader[i] = -1;
+            Hierarchy hierarchy = this.hierarchies[i];
+            if (!hierarchy.isMemoizable()) {
+                continue;
+            }
+            Cache[] caches = hierarchy.getCaches();
+            // replaying the longest recorded prefix, or failing that being fed by an earlier hierarchy of the sweep
+            for (int levels = caches.length - 1; levels > 0 && this.firstLevel[i] == 0; levels--) {
+                String key = MissStream.key(trace, caches, levels, hierarchy.isModellingWrites());
+                Path path = MissStream.path(directory, key);
+                if (Files.exists(path)) {
+                    this.firstLevel[i] = levels;
+                    this.replays[i] = path;
+                    this.replayKeys[i] = key;
+                }
+                else if (recording.contains(key)) {
+                    for (int j = 0; j < i && this.firstLevel[i] == 0; j++) {
+                        if (this.hierarchies[j].isMemoizable() && this.firstLevel[j] < levels
+                                && key.equals(MissStream.key(trace, this.hierarchies[j].getCaches(), levels, hierarchy.isModellingWrites()))) {
+                            this.firstLevel[i] = levels;
+                            this.leader[i] = j;
+                            this.hierarchies[j].getCaches()[levels - 1].addListener(new Follower(hierarchy, levels));
+                        }
+                    }
+                }
+            }
+            // recording the streams of the prefixes the hierarchy simulates itself
+            for (int levels = this.firstLevel[i] + 1; levels < caches.length; levels++) {
+                String key = MissStream.key(trace, caches, levels, hierarchy.isModellingWrites());
+                if (recording.add(key) && !Files.exists(MissStream.path(directory, key))) {
+                    MissStreamWriter writer = new MissStreamWriter(MissStream.path(directory, key), key, caches[levels - 1]);
+                    caches[levels - 1].addListener(writer);
+                    this.writers.add(writer);
+                    this.writerCaches.add(caches);
+                    this.writerLevels.add(levels);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds the trace into the hierarchies that read it, if there are any, then replays the recorded streams into the others,
+     * fills in the counts of the first levels that were not simulated, and finally moves the newly recorded streams into place
+     * @param trace The trace to simulate
+     * @return      The number of accesses in the trace
+     */
+    public long run(TraceReader trace) throws IOException, InterruptedException {
+        long accesses = -1;
+        try {
+            boolean reading = false;
+            for (int i = 0; i < this.hierarchies.length; i++) {
+                reading |= this.firstLevel[i] == 0;
+            }
+            if (reading) {
+                accesses = super.run(trace);
+            }
+            for (int i = 0; i < this.hierarchies.length; i++) {
+                if (this.replays[i] != null) {
+                    accesses = this.replay(i);
+                }
+            }
+            // a leader always comes before its followers, so its own counts are filled in before they are copied
+            for (int i = 0; i < this.hierarchies.length; i++) {
+                if (this.leader[i] >= 0) {
+                    Cache[] caches = this.hierarchies[i].getCaches();
+                    Cache[] leaderCaches = this.hierarchies[this.leader[i]].getCaches();
+                    for (int level = 0; level < this.firstLevel[i]; level++) {
+                        caches[level].setCounts(leaderCaches[level].getCounts());
+                    }
+                }
+            }
+            for (int i = 0; i < this.writers.size(); i++) {
+                this.writers.get(i).finish(accesses, this.writerCaches.get(i), this.writerLevels.get(i));
+            }
+        }
+        finally {
+            for (MissStreamWriter writer : this.writers) {
+                writer.close();
+            }
+        }
+        return accesses;
+    }
+
+    /**
+     * Only hierarchies that simulate their first level are fed from the trace
+     */
+    protected void feed(int i, TraceBlock block) {
+        if (this.firstLevel[i] == 0) {
+            super.feed(i, block);
+        }
+    }
+
+    /**
+     * Replays a hierarchy's recorded stream into its first simulated level, taking the counts of the levels above from the stream
+     * @param i The position of the hierarchy
+     * @return  The number of accesses in the trace the stream was recorded from
+     */
+    private long replay(int i) throws IOException {
+        Hierarchy hierarchy = this.hierarchies[i];
+        Cache[] caches = hierarchy.getCaches();
+        int level = this.firstLevel[i];
+        long[] lines = new long[REPLAY_CAPACITY];
+        byte[] kinds = new byte[REPLAY_CAPACITY];
+        try (MissStreamReader reader = new MissStreamReader(this.replays[i], this.replayKeys[i], caches[level - 1])) {
+            int n;
+            while ((n = reader.read(lines, kinds)) > 0) {
+                if (hierarchy.isModellingWrites()) {
+                    caches[level].checkCache(lines, kinds, n);
+                }
+                else {
+                    caches[level].checkCache(lines, n);
+                }
+            }
+            for (int j = 0; j < level; j++) {
+                caches[j].setCounts(reader.getCounts(j));
+            }
+            return reader.getAccesses();
+        }
+    }
+
+    /**
+     * Passes the stream leaving the first levels of one hierarchy straight into the lower levels of another with the same first levels
+     */
+    private static class Follower implements MissListener {
+        private final Cache first;      // The first level the follower simulates itself
+        private final boolean writes;
+
+        Follower(Hierarchy hierarchy, int level) {
+            this.first = hierarchy.getCaches()[level];
+            this.writes = hierarchy.isModellingWrites();
+        }
+
+        public void passed(long[] lines, byte[] kinds, int count) {
+            if (this.writes) {
+                this.first.checkCache(lines, kinds, count);
+            }
+            else {
+                this.first.checkCache(lines, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Produces LRU miss ratio curves from a single pass over a trace, rather than running Main once per cache size.
+ * The fully associative curve covers every power of two number of lines up to the trace's footprint, and each requested
+ * number of sets gets a curve over every associativity up to --ways. With --check, NWayAssociative caches using lru are
+ * simulated alongside at a few of the points so that the curves can be compared against the simulator itself.
+ */
+public class MissCurve {
+    private static final int CHECKED_LINES = 1024;  // The largest fully associative cache simulated by --check, as its tag scan grows with its size
+
+    public static void main(String[] args) {
+        try {
+            int ways = 16;
+            boolean check = false;
+            int arg = 0;
+            while (arg < args.length && args[arg].startsWith("--")) {
+                switch (args[arg]) {
+                    case "--ways":
+                        ways = Integer.parseInt(args[++arg]);
+                        break;
+                    case "--check":
+                        check = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[arg]);
+                }
+                arg++;
+            }
+            if (args.length - arg < 2) {
+                System.err.println("Usage: java MissCurve [--ways <max ways>] [--check] <line size> <Path to Trace File> [set counts...]");
+                return;
+            }
+            int lineSize = Integer.parseInt(args[arg]);
+            String tracePath = args[arg + 1];
+            int offsetBitShift = 31 - Integer.numberOfLeadingZeros(lineSize);
+
+            StackDistance full = new StackDistance();
+            List<SetStackDistance> perSet = new ArrayList<>();
+            for (int i = arg + 2; i < args.length; i++) {
+                perSet.add(new SetStackDistance(Integer.parseInt(args[i]), ways));
+            }
+
+            // the caches simulated alongside for --check, the fully associative ones first
+            List<Cache> checked = new ArrayList<>();
+            if (check) {
+                for (int lines = 1; lines <= CHECKED_LINES; lines *= 4) {
+                    checked.add(new NWayAssociative("full_" + lines, lines * lineSize, lineSize, lines, "lru"));
+                }
+                for (SetStackDistance sets : perSet) {
+                    for (int w = 1; w <= ways; w *= 2) {
+                        checked.add(new NWayAssociative(sets.getSets() + "x" + w, sets.getSets() * w * lineSize, lineSize, w, "lru"));
+                    }
+                }
+            }
+
+            TraceBlock block = new TraceBlock(new int[] {lineSize});
+            final long startTime = System.nanoTime();
+            try (TraceReader trace = TraceReader.open(tracePath)) {
+                while (block.fill(trace) > 0) {
+                    long[] lines = block.getLines(0);
+                    int count = block.getLineCount(0);
+                    for (int i = 0; i < count; i++) {
+                        long line = lines[i] >> offsetBitShift;
+                        full.access(line);
+                        for (SetStackDistance sets : perSet) {
+                            sets.access(line);
+                        }
+                    }
+                    for (Cache cache : checked) {
+                        cache.checkCache(lines, count);
+                    }
+                }
+            }
+            final double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.err.printf("Analysed %d line accesses in %.3f s%n", full.getAccesses(), seconds);
+
+            System.out.println("{");
+            System.out.println("\t\"line_size\": " + lineSize + ",");
+            System.out.println("\t\"accesses\": " + full.getAccesses() + ",");
+            System.out.println("\t\"footprint_lines\": " + full.getFootprint() + ",");
+            System.out.println("\t\"fully_associative\": [");
+            long maxLines = Math.max(1, Long.highestOneBit(Math.max(1, full.getFootprint()) * 2 - 1));
+            for (long lines = 1; lines <= maxLines; lines *= 2) {
+                System.out.print("\t\t{\"lines\": " + lines + ", \"size\": " + lines * lineSize + ", \"miss_ratio\": " + format(full.missRatio(lines)));
+                Cache cache = find(checked, "full_" + lines);
+                if (cache != null) {
+                    System.out.print(", \"simulated_miss_ratio\": " + format(missRatio(cache)));
+                }
+                System.out.println("}" + (lines < maxLines ? "," : ""));
+            }
+            System.out.print("\t]");
+            if (!perSet.isEmpty()) {
+                System.out.println(",");
+                System.out.println("\t\"set_associative\": [");
+                for (int s = 0; s < perSet.size(); s++) {
+                    SetStackDistance sets = perSet.get(s);
+                    System.out.println("\t\t{");
+                    System.out.println("\t\t\t\"sets\": " + sets.getSets() + ",");
+                    System.out.println("\t\t\t\"curve\": [");
+                    for (int w = 1; w <= sets.getWays(); w++) {
+                        System.out.print("\t\t\t\t{\"ways\": " + w + ", \"size\": " + (long) sets.getSets() * w * lineSize + ", \"miss_ratio\": " + format(sets.missRatio(w)));
+                        Cache cache = find(checked, sets.getSets() + "x" + w);
+                        if (cache != null) {
+                            System.out.print(", \"simulated_miss_ratio\": " + format(missRatio(cache)));
+                        }
+                        System.out.println("}" + (w < sets.getWays() ? "," : ""));
+                    }
+                    System.out.println("\t\t\t]");
+                    System.out.println("\t\t}" + (s < perSet.size() - 1 ? "," : ""));
+                }
+                System.out.print("\t]");
+            }
+            System.out.println();
+            System.out.println("}");
+        }
+        catch (Exception e) {
+            System.err.println(e);
+        }
+    }
+
+    private static Cache find(List<Cache> caches, String name) {
+        for (Cache cache : caches) {
+            if (cache.getName().equals(name)) {
+                return cache;
+            }
+        }
+        return null;
+    }
+
+    private static double missRatio(Cache cache) {
+        long accesses = cache.getHits() + cache.getMisses();
+        return accesses == 0 ? 0 : (double) cache.getMisses() / accesses;
+    }
+
+    private static String format(double value) {
+        return String.format("%.6f", value);
+    }
+}
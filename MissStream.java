@@ -0,0 +1,316 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Receives each block of accesses a cache passes on to its child
+ */
+interface MissListener {
+    /**
+     * Called with a block passed on by the batched checkCache, the arrays only being valid during the call
+     * @param lines The line aligned addresses
+     * @param kinds The kind of each access, or null when the hierarchy does not model writes and every access is a read
+     * @param count How many of the addresses are in use
+     */
+    void passed(long[] lines, byte[] kinds, int count);
+}
+
+/**
+ * Layout of a recorded miss stream, being every access that left the first levels of a hierarchy on a whole trace, kept so that
+ * hierarchies sharing those levels can skip simulating them.
+ * The file starts with a 32 byte header, the magic number, a version, the number of accesses in the trace, the number of records,
+ * and the offset of the footer. The key the stream was recorded under follows, then the records, each being a varint holding the
+ * kind of the access in its low 2 bits above which is the zigzag encoded difference from the previous record's line number.
+ * The footer holds the counts of each of the first levels once the trace had been simulated, in the order of Cache.getCounts
+ */
+final class MissStream {
+    static final int MAGIC = 0x43534D53;    // "CSMS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ACCESSES_OFFSET = 8;   // Where the header fields filled in on closing start
+    static final int MAX_RECORD_SIZE = 10;
+    static final String SUFFIX = ".miss";
+
+    private MissStream() {
+    }
+
+    /**
+     * Builds the key of the stream leaving the first levels of a hierarchy, from everything about the trace and the caches that
+     * the stream depends on. The trace is identified by its path, size and modification time rather than its contents,
+     * so that finding a recorded stream never means reading the trace
+     * @param trace     The path of the trace
+     * @param caches    The caches of the hierarchy
+     * @param levels    The number of first levels
+     * @param writes    Whether the hierarchy models writes
+     * @return          The key
+     */
+    static String key(Path trace, Cache[] caches, int levels, boolean writes) throws IOException {
+        StringBuilder key = new StringBuilder();
+        key.append(trace.toAbsolutePath().normalize()).append(' ').append(Files.size(trace)).append(' ').append(Files.getLastModifiedTime(trace).toMillis());
+        key.append(writes ? "\nwrites" : "\nreads");
+        for (int i = 0; i < levels; i++) {
+            key.append('\n').append(caches[i].describe());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns where the stream with the given key is kept in a directory, named after a hash of the key
+     * @param directory The directory of recorded streams
+     * @param key       The key
+     * @return          The path of the stream, which may not exist
+     */
+    static Path path(Path directory, String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name + SUFFIX);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every Java platform provides SHA-256
+        }
+    }
+}
+
+/**
+ * Records the stream leaving the first levels of a hierarchy while the trace is simulated. The stream goes to a temporary file which
+ * replaces the stream's path once the whole trace has been recorded, so an interrupted or concurrent run never leaves half a stream
+ */
+class MissStreamWriter implements MissListener, AutoCloseable {
+    private final Path path;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final int offsetBitShift;   // The shift turning the line aligned addresses into line numbers
+    private long previousLine;
+    private long records;
+    private boolean finished;
+
+    /**
+     * Starts recording a stream
+     * @param path      Where the stream will be kept
+     * @param key       The key of the stream
+     * @param last      The last of the first levels, whose line size the stream is recorded at
+     */
+    public MissStreamWriter(Path path, String key, Cache last) throws IOException {
+        this.path = path;
+        this.temporary = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        this.channel = FileChannel.open(this.temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.offsetBitShift = last.getOffsetBitShift();
+        this.buffer.putInt(MissStream.MAGIC);
+        this.buffer.putInt(MissStream.VERSION);
+        this.buffer.position(MissStream.HEADER_SIZE);   // the rest of the header is filled in by finish
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        this.buffer.putInt(bytes.length);
+        this.buffer.put(bytes);
+    }
+
+    public void passed(long[] lines, byte[] kinds, int count) {
+        try {
+            for (int i = 0; i < count; i++) {
+                if (this.buffer.remaining() < MissStream.MAX_RECORD_SIZE) {
+                    this.flush();
+                }
+                long line = lines[i] >> this.offsetBitShift;
+                long delta = line - this.previousLine;
+                this.putVarint((delta << 1 ^ delta >> 63) << 2 | (kinds == null ? Cache.READ : kinds[i]));
+                this.previousLine = line;
+            }
+            this.records += count;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the footer and header, then moves the stream into place
+     * @param accesses  The number of accesses in the trace
+     * @param caches    The first levels, whose counts go in the footer
+     * @param levels    The number of first levels
+     */
+    public void finish(long accesses, Cache[] caches, int levels) throws IOException {
+        this.flush();
+        long footer = this.channel.position();
+        this.buffer.putInt(levels);
+        for (int i = 0; i < levels; i++) {
+            for (long count : caches[i].getCounts()) {
+                this.buffer.putLong(count);
+            }
+        }
+        this.flush();
+        ByteBuffer header = ByteBuffer.allocate(3 * Long.BYTES);
+        header.putLong(accesses).putLong(this.records).putLong(footer).flip();
+        this.channel.write(header, MissStream.ACCESSES_OFFSET);
+        this.channel.force(false);
+        this.channel.close();
+        Files.move(this.temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.finished = true;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            this.buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        this.buffer.put((byte) value);
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Throws away the stream unless it was finished
+     */
+    public void close() throws IOException {
+        if (!this.finished) {
+            this.channel.close();
+            Files.deleteIfExists(this.temporary);
+        }
+    }
+}
+
+/**
+ * Reads a recorded stream back a block at a time, decoding the records straight from a direct buffer refilled from the file channel
+ */
+class MissStreamReader implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final int offsetBitShift;
+    private final long accesses;
+    private final long[][] counts;      // The counts of each of the first levels
+    private long remaining;             // The number of records left to read
+    private long previousLine;
+    private boolean endOfFile;
+
+    /**
+     * Opens a recorded stream, checking that it was recorded under the given key
+     * @param path  The path of the stream
+     * @param key   The key the stream should have been recorded under
+     * @param last  The last of the first levels, whose line size the stream was recorded at
+     */
+    public MissStreamReader(Path path, String key, Cache last) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.offsetBitShift = last.getOffsetBitShift();
+        ByteBuffer header = ByteBuffer.allocate(MissStream.HEADER_SIZE);
+        this.readFully(header, 0);
+        if (header.getInt(0) != MissStream.MAGIC || header.getInt(4) != MissStream.VERSION) {
+            throw new IOException(path + " is not a miss stream of this version");
+        }
+        this.accesses = header.getLong(MissStream.ACCESSES_OFFSET);
+        this.remaining = header.getLong(MissStream.ACCESSES_OFFSET + 8);
+        long footer = header.getLong(MissStream.ACCESSES_OFFSET + 16);
+
+        ByteBuffer footerLevels = ByteBuffer.allocate(Integer.BYTES);
+        this.readFully(footerLevels, footer);
+        int levels = footerLevels.getInt(0);
+        ByteBuffer footerCounts = ByteBuffer.allocate(levels * 5 * Long.BYTES);
+        this.readFully(footerCounts, footer + Integer.BYTES);
+        this.counts = new long[levels][5];
+        for (int i = 0; i < levels; i++) {
+            for (int j = 0; j < 5; j++) {
+                this.counts[i][j] = footerCounts.getLong((i * 5 + j) * Long.BYTES);
+            }
+        }
+
+        this.channel.position(MissStream.HEADER_SIZE);
+        this.buffer.flip();
+        this.fill();
+        int length = this.buffer.getInt();
+        byte[] bytes = new byte[length];
+        this.buffer.get(bytes);
+        if (!new String(bytes, StandardCharsets.UTF_8).equals(key)) {
+            throw new IOException(path + " was recorded under a different key");
+        }
+    }
+
+    /**
+     * Returns the number of accesses in the trace the stream was recorded from
+     * @return A long
+     */
+    public long getAccesses() {
+        return this.accesses;
+    }
+
+    /**
+     * Returns the counts of one of the first levels at the end of the trace
+     * @param level The level
+     * @return      The counts, in the order of Cache.getCounts
+     */
+    public long[] getCounts(int level) {
+        return this.counts[level];
+    }
+
+    /**
+     * Decodes the next records of the stream
+     * @param lines Where to write the line aligned addresses
+     * @param kinds Where to write the kind of each access
+     * @return      The number of records decoded, at most the length of lines, 0 once the stream has ended
+     */
+    public int read(long[] lines, byte[] kinds) throws IOException {
+        int n = (int) Math.min(lines.length, this.remaining);
+        ByteBuffer buf = this.buffer;
+        for (int i = 0; i < n; i++) {
+            if (buf.remaining() < MissStream.MAX_RECORD_SIZE && !this.endOfFile) {
+                this.fill();
+            }
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (!buf.hasRemaining()) {
+                    throw new EOFException("Miss stream ends part way through a record");
+                }
+                byte b = buf.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            long delta = value >>> 2;
+            this.previousLine += delta >>> 1 ^ -(delta & 1);
+            lines[i] = this.previousLine << this.offsetBitShift;
+            kinds[i] = (byte) (value & 3);
+        }
+        this.remaining -= n;
+        return n;
+    }
+
+    private void fill() throws IOException {
+        this.buffer.compact();
+        while (this.buffer.hasRemaining()) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.endOfFile = true;
+                break;
+            }
+        }
+        this.buffer.flip();
+    }
+
+    private void readFully(ByteBuffer into, long position) throws IOException {
+        while (into.hasRemaining()) {
+            if (this.channel.read(into, position + into.position()) < 0) {
+                throw new EOFException("Miss stream is cut short");
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Simulates several cores, each with its own copy of the first levels of a config, sharing the last levels between them.
+ * Every cache line accessed gets a sequence number fixing where it falls in the interleaving of the cores, either its position in a
+ * trace with a core column or, with one trace per core, round-robin between the cores one cache line at a time.
+ * As the private levels never depend on the shared ones, each core runs its private levels on its own thread, and the calling thread
+ * merges the cores' misses back into sequence order before feeding them into the shared levels, so the results do not depend on
+ * how the threads are scheduled.
+ * With a coherence protocol, a write by one core changes what the other cores' private levels hold, so the private levels are
+ * simulated by the merge instead, on every cache line in sequence order, the cores' threads only reading and numbering the lines.
+ */
+class MultiCoreSimulation {
+    private static final int CHUNKS_PER_CORE = 4;   // How many chunks each core can have in flight
+    private static final int MERGE_CAPACITY = 1 << 14; // How many merged misses are fed into the shared levels at once
+
+    private final Hierarchy[] privates;     // The private levels of each core
+    private final Hierarchy shared;         // The levels shared between the cores
+    private final int lineSize;             // The line size of the first level, which the trace is split into
+    private final long[][] sharedAccesses;  // The accesses each core made to each shared level
+    private final long[][] sharedMisses;    // The misses each core took in each shared level
+    private final Coherence coherence;      // Keeps the private levels coherent, null when coherence is not modelled
+    private final Core[] cores;
+    private final long[] mergedLines = new long[MERGE_CAPACITY];
+    private final long[] mergedCores = new long[MERGE_CAPACITY];
+    private int merged;                     // How many merged misses are waiting to be fed into the shared levels
+    private volatile Throwable failure;     // The first exception thrown by another thread
+    private Thread merger;                  // The calling thread, interrupted when another thread fails
+
+    /**
+     * Creates the caches of every core along with the shared levels
+     * @param config    The config of a single core's hierarchy, whose last shared_levels caches are shared
+     * @param cores     The number of cores
+     */
+    public MultiCoreSimulation(CacheList config, int cores) {
+        int levels = config.getCaches().size();
+        int sharedLevels = config.getShared_levels() == 0 ? 1 : config.getShared_levels();
+        if (cores < 1) {
+            throw new IllegalArgumentException("A multi-core run needs at least one core");
+        }
+        if (sharedLevels < 1 || sharedLevels > levels) {
+            throw new IllegalArgumentException("shared_levels must be between 1 and the number of caches");
+        }
+        if (config.getInclusion() != null && !config.getInclusion().equals("nine")) {
+            throw new IllegalArgumentException("Multi-core runs only support nine hierarchies");
+        }
+        CacheList sharedConfig = new CacheList();
+        sharedConfig.setCaches(config.getCaches().subList(levels - sharedLevels, levels));
+        this.shared = this.build("shared", sharedConfig);
+        this.privates = new Hierarchy[cores];
+        this.cores = new Core[cores];
+        for (int i = 0; i < cores; i++) {
+            if (sharedLevels < levels) {
+                CacheList privateConfig = new CacheList();
+                privateConfig.setCaches(config.getCaches().subList(0, levels - sharedLevels));
+                this.privates[i] = this.build("core_" + i, privateConfig);
+            }
+            this.cores[i] = new Core(i);
+        }
+        String coherence = config.getCoherence() == null ? "none" : config.getCoherence();
+        switch (coherence) {
+            case "none":
+                this.coherence = null;
+                break;
+            case "mesi":
+                if (sharedLevels == levels) {
+                    throw new IllegalArgumentException("Coherence needs at least one private cache per core");
+                }
+                this.coherence = new Coherence(this.privates);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown coherence " + coherence + ", expected none or mesi");
+        }
+        this.lineSize = config.getCaches().get(0).getLine_size();
+        this.sharedAccesses = new long[sharedLevels][cores];
+        this.sharedMisses = new long[sharedLevels][cores];
+    }
+
+    private Hierarchy build(String name, CacheList config) {
+        Hierarchy hierarchy = new Hierarchy(name, config);
+        if (hierarchy.isModellingWrites() || hierarchy.isPrefetching()) {
+            throw new IllegalArgumentException("Multi-core runs do not support write policies or prefetchers");
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Simulates one trace per core, interleaving the cores round-robin one cache line at a time. A core whose trace runs out drops out
+     * @param traces    The trace of each core
+     * @return          The number of accesses across every trace
+     */
+    public long run(List<TraceReader> traces) throws IOException, InterruptedException {
+        if (traces.size() != this.cores.length) {
+            throw new IllegalArgumentException("Expected one trace per core");
+        }
+        Thread[] threads = new Thread[this.cores.length];
+        for (int i = 0; i < threads.length; i++) {
+            Core core = this.cores[i];
+            TraceReader trace = traces.get(i);
+            threads[i] = new Thread(() -> core.readOwnTrace(trace), "core-" + i);
+        }
+        this.start(threads);
+        return this.finish(threads);
+    }
+
+    /**
+     * Simulates a single trace whose core column says which core makes each access, interleaving the cores in trace order
+     * @param trace The trace
+     * @return      The number of accesses in the trace
+     */
+    public long run(TraceReader trace) throws IOException, InterruptedException {
+        Thread[] threads = new Thread[this.cores.length + 1];
+        for (int i = 0; i < this.cores.length; i++) {
+            Core core = this.cores[i];
+            threads[i] = new Thread(core::simulateInput, "core-" + i);
+        }
+        long[] accesses = new long[1];
+        threads[this.cores.length] = new Thread(() -> accesses[0] = this.distribute(trace), "trace-reader");
+        this.start(threads);
+        this.finish(threads);
+        return accesses[0];
+    }
+
+    private void start(Thread[] threads) {
+        this.merger = Thread.currentThread();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Merges the cores' misses into the shared levels until every core is done, then waits for the other threads
+     * @param threads   The threads started for the run
+     * @return          The number of accesses the cores read
+     */
+    private long finish(Thread[] threads) throws IOException, InterruptedException {
+        boolean finished = false;
+        try {
+            this.merge();
+            finished = true;
+        }
+        catch (InterruptedException e) {
+            if (this.failure == null) {
+                throw e;
+            }
+        }
+        finally {
+            for (Thread thread : threads) {
+                if (!finished) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (this.failure != null) {
+            throw new IOException("Multi-core simulation failed", this.failure);
+        }
+        long accesses = 0;
+        for (Core core : this.cores) {
+            accesses += core.accesses;
+        }
+        return accesses;
+    }
+
+    /**
+     * Reads a trace with a core column, dealing each cache line out to its core with its position in the trace as its sequence number.
+     * Every core is sent a chunk for each block of the trace, even if it is empty, so that the merge always learns how far each core has got
+     * @param trace The trace
+     * @return      The number of accesses in the trace
+     */
+    private long distribute(TraceReader trace) {
+        long accesses = 0;
+        try {
+            long sequence = 0;
+            boolean more = true;
+            while (more) {
+                Chunk[] chunks = new Chunk[this.cores.length];
+                for (int i = 0; i < chunks.length; i++) {
+                    chunks[i] = this.cores[i].free.take();
+                    chunks[i].count = 0;
+                }
+                int n = 0;
+                while (n < TraceBlock.CAPACITY && (more = trace.next())) {
+                    int core = trace.getCore();
+                    if (core >= chunks.length) {
+                        throw new IOException("Access " + accesses + " is made by core " + core + " of " + chunks.length);
+                    }
+                    long memAddr = trace.getAddress();
+                    long endAddr = memAddr + trace.getSize();
+                    byte kind = trace.isWrite() ? Cache.WRITE : Cache.READ;
+                    // Goes through each cache line that this memory block would use in the cache
+                    for (memAddr -= memAddr % this.lineSize; memAddr < endAddr; memAddr += this.lineSize) {
+                        chunks[core].add(memAddr, sequence++, kind);
+                    }
+                    n++;
+                }
+                accesses += n;
+                for (int i = 0; i < chunks.length; i++) {
+                    chunks[i].watermark = sequence - 1;
+                    chunks[i].last = !more;
+                    this.cores[i].input.put(chunks[i]);
+                }
+            }
+        }
+        catch (Throwable t) {
+            this.fail(t);
+        }
+        return accesses;
+    }
+
+    /**
+     * Feeds the cores' misses into the shared levels in sequence order, first running every cache line through the private levels
+     * when coherence is modelled. A miss is only taken once every other core has either
+     * a later miss waiting or has promised, through the watermark of its last chunk, that its next misses come later
+     */
+    private void merge() throws InterruptedException {
+        int count = this.cores.length;
+        Chunk[] heads = new Chunk[count];
+        int[] positions = new int[count];
+        boolean[] done = new boolean[count];
+        while (true) {
+            // the key of a core is twice the sequence number of its next miss, or one more than twice its watermark when it has none
+            int best = -1;
+            long bestKey = Long.MAX_VALUE;
+            long secondKey = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                if (heads[i] == null) {
+                    heads[i] = this.cores[i].output.take();
+                    positions[i] = 0;
+                }
+                Chunk head = heads[i];
+                long key;
+                if (positions[i] < head.count) {
+                    key = 2 * head.ids[positions[i]];
+                }
+                else if (head.last) {
+                    done[i] = true;
+                    this.cores[i].free.put(head);
+                    heads[i] = null;
+                    continue;
+                }
+                else {
+                    key = 2 * head.watermark + 1;
+                }
+                if (key < bestKey) {
+                    secondKey = bestKey;
+                    bestKey = key;
+                    best = i;
+                }
+                else if (key < secondKey) {
+                    secondKey = key;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            Chunk head = heads[best];
+            if ((bestKey & 1) != 0) {
+                // the core has nothing before its watermark, so its next chunk is needed
+                this.cores[best].free.put(head);
+                heads[best] = null;
+                continue;
+            }
+            // taking the core's misses up to the next key of any other core
+            int p = positions[best];
+            for (; p < head.count && 2 * head.ids[p] < secondKey; p++) {
+                if (this.coherence != null && !this.coherence.access(best, head.lines[p], head.kinds[p] == Cache.WRITE)) {
+                    continue;   // a hit in the core's private levels
+                }
+                if (this.merged == MERGE_CAPACITY) {
+                    this.feedShared();
+                }
+                this.mergedLines[this.merged] = head.lines[p];
+                this.mergedCores[this.merged++] = best;
+            }
+            positions[best] = p;
+        }
+        this.feedShared();
+    }
+
+    /**
+     * Feeds the merged misses through the shared levels, counting each level's accesses and misses per core
+     */
+    private void feedShared() {
+        int n = this.merged;
+        Cache[] caches = this.shared.getCaches();
+        for (int level = 0; level < caches.length && n > 0; level++) {
+            long[] accesses = this.sharedAccesses[level];
+            long[] misses = this.sharedMisses[level];
+            for (int i = 0; i < n; i++) {
+                accesses[(int) this.mergedCores[i]]++;
+            }
+            n = caches[level].filterMisses(this.mergedLines, this.mergedCores, n);
+            for (int i = 0; i < n; i++) {
+                misses[(int) this.mergedCores[i]]++;
+            }
+        }
+        this.merged = 0;
+    }
+
+    /**
+     * Records the first exception thrown by another thread and stops the merge, the other threads then being interrupted by the merge
+     * @param t The exception
+     */
+    private synchronized void fail(Throwable t) {
+        if (this.failure == null) {
+            this.failure = t;
+            this.merger.interrupt();
+        }
+    }
+
+    /**
+     * Prints a json of every core's private caches, then the shared caches with their hits and misses broken down by core
+     * @param out The stream to print to
+     */
+    public void printJson(PrintStream out) {
+        Cache[] sharedCaches = this.shared.getCaches();
+        out.println("{");
+        out.println("\t\"main_memory_accesses\": " + sharedCaches[sharedCaches.length - 1].getMisses() + ",");
+        if (this.coherence != null) {
+            out.println("\t\"coherence\": \"mesi\",");
+            out.println("\t\"invalidations\": " + sum(this.coherence.getInvalidations()) + ",");
+            out.println("\t\"upgrades\": " + sum(this.coherence.getUpgrades()) + ",");
+            out.println("\t\"coherence_misses\": " + sum(this.coherence.getCoherenceMisses()) + ",");
+            out.println("\t\"coherence_write_backs\": " + sum(this.coherence.getWriteBacks()) + ",");
+        }
+        out.println("\t\"cores\": [");
+        for (int i = 0; i < this.cores.length; i++) {
+            out.println("\t\t{");
+            out.println("\t\t\t\"core\": " + i + ",");
+            if (this.coherence != null) {
+                out.println("\t\t\t\"invalidations\": " + this.coherence.getInvalidations()[i] + ",");
+                out.println("\t\t\t\"upgrades\": " + this.coherence.getUpgrades()[i] + ",");
+                out.println("\t\t\t\"coherence_misses\": " + this.coherence.getCoherenceMisses()[i] + ",");
+                out.println("\t\t\t\"coherence_write_backs\": " + this.coherence.getWriteBacks()[i] + ",");
+            }
+            out.println("\t\t\t\"caches\": [");
+            Cache[] caches = this.privates[i] == null ? new Cache[0] : this.privates[i].getCaches();
+            for (int j = 0; j < caches.length; j++) {
+                out.println("\t\t\t\t{");
+                out.println("\t\t\t\t\t\"name\": \"" + caches[j].getName() + "\",");
+                out.println("\t\t\t\t\t\"hits\": \"" + caches[j].getHits() + "\",");
+                out.println("\t\t\t\t\t\"misses\": \"" + caches[j].getMisses() + "\"");
+                out.println("\t\t\t\t}" + (j != caches.length - 1 ? "," : ""));
+            }
+            out.println("\t\t\t]");
+            out.println("\t\t}" + (i != this.cores.length - 1 ? "," : ""));
+        }
+        out.println("\t],");
+        out.println("\t\"shared_caches\": [");
+        for (int level = 0; level < sharedCaches.length; level++) {
+            long[] coreHits = new long[this.cores.length];
+            for (int i = 0; i < coreHits.length; i++) {
+                coreHits[i] = this.sharedAccesses[level][i] - this.sharedMisses[level][i];
+            }
+            out.println("\t\t{");
+            out.println("\t\t\t\"name\": \"" + sharedCaches[level].getName() + "\",");
+            out.println("\t\t\t\"hits\": \"" + sharedCaches[level].getHits() + "\",");
+            out.println("\t\t\t\"misses\": \"" + sharedCaches[level].getMisses() + "\",");
+            out.println("\t\t\t\"core_hits\": " + Arrays.toString(coreHits) + ",");
+            out.println("\t\t\t\"core_misses\": " + Arrays.toString(this.sharedMisses[level]));
+            out.println("\t\t}" + (level != sharedCaches.length - 1 ? "," : ""));
+        }
+        out.println("\t]");
+        out.print("}");
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * A run of one core's cache lines with their sequence numbers, which the core's thread cuts down to the misses of its private levels
+     */
+    private static class Chunk {
+        long[] lines = new long[TraceBlock.CAPACITY];
+        long[] ids = new long[TraceBlock.CAPACITY];    // The sequence number of each cache line
+        byte[] kinds = new byte[TraceBlock.CAPACITY];  // Whether each cache line is read or written, only kept up to date until filtered
+        int count;
+        long watermark;     // Every later cache line of the core has a larger sequence number than this
+        boolean last;       // Whether this is the core's last chunk
+
+        void add(long line, long id, byte kind) {
+            if (this.count == this.lines.length) {
+                this.lines = Arrays.copyOf(this.lines, this.count * 2);
+                this.ids = Arrays.copyOf(this.ids, this.count * 2);
+                this.kinds = Arrays.copyOf(this.kinds, this.count * 2);
+            }
+            this.lines[this.count] = line;
+            this.ids[this.count] = id;
+            this.kinds[this.count++] = kind;
+        }
+    }
+
+    /**
+     * The private levels of one core. Chunks go round from the free queue, to being filled with cache lines, through the core's private
+     * levels, to the merge through the output queue, and back to the free queue
+     */
+    private class Core {
+        private final int index;
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS_PER_CORE);
+        final BlockingQueue<Chunk> input = new ArrayBlockingQueue<>(CHUNKS_PER_CORE);  // Chunks dealt out from a trace with a core column
+        final BlockingQueue<Chunk> output = new ArrayBlockingQueue<>(CHUNKS_PER_CORE);
+        long accesses;      // The number of accesses read from the core's own trace
+
+        Core(int index) {
+            this.index = index;
+            for (int i = 0; i < CHUNKS_PER_CORE; i++) {
+                this.free.add(new Chunk());
+            }
+        }
+
+        /**
+         * Reads the core's own trace, numbering the n-th cache line of core i as n times the number of cores plus i
+         * @param trace The core's trace
+         */
+        void readOwnTrace(TraceReader trace) {
+            try {
+                int cores = MultiCoreSimulation.this.cores.length;
+                TraceBlock block = new TraceBlock(new int[] {MultiCoreSimulation.this.lineSize});
+                long sequence = this.index;
+                while (true) {
+                    Chunk chunk = this.free.take();
+                    chunk.count = 0;
+                    int n = block.fill(trace);
+                    long[] lines = block.getLines(0);
+                    byte[] kinds = block.getKinds(0);
+                    for (int i = 0; i < block.getLineCount(0); i++) {
+                        chunk.add(lines[i], sequence, kinds[i]);
+                        sequence += cores;
+                    }
+                    this.accesses += n;
+                    chunk.watermark = sequence - cores;
+                    chunk.last = n == 0;
+                    this.simulate(chunk);
+                    if (chunk.last) {
+                        break;
+                    }
+                }
+            }
+            catch (Throwable t) {
+                MultiCoreSimulation.this.fail(t);
+            }
+        }
+
+        /**
+         * Simulates the chunks dealt out to the core from a trace with a core column
+         */
+        void simulateInput() {
+            try {
+                Chunk chunk;
+                do {
+                    chunk = this.input.take();
+                    this.simulate(chunk);
+                } while (!chunk.last);
+            }
+            catch (Throwable t) {
+                MultiCoreSimulation.this.fail(t);
+            }
+        }
+
+        /**
+         * Runs a chunk through the core's private levels, leaving only the misses of the last private level, and hands it to the merge.
+         * With coherence the whole chunk is handed on, as the merge has to run the private levels itself
+         * @param chunk The chunk
+         */
+        private void simulate(Chunk chunk) throws InterruptedException {
+            Hierarchy hierarchy = MultiCoreSimulation.this.privates[this.index];
+            if (hierarchy != null && MultiCoreSimulation.this.coherence == null) {
+                for (Cache cache : hierarchy.getCaches()) {
+                    chunk.count = cache.filterMisses(chunk.lines, chunk.ids, chunk.count);
+                }
+            }
+            this.output.put(chunk);
+        }
+    }
+}
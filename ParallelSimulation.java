@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs independent hierarchies at the same time on a pool of worker threads.
+ * The calling thread reads the trace into blocks and hands every block to each worker through a bounded queue,
+ * each worker simulating its share of the hierarchies, so the results are the same as a sequential run.
+ */
+class ParallelSimulation extends Simulation {
+    private static final int BLOCKS_PER_WORKER = 4;     // How far ahead of the slowest worker the reader is allowed to get
+
+    private final Worker[] workers;
+    private final BlockingQueue<TraceBlock> freeBlocks; // Blocks that every worker has finished with, ready to be refilled
+    private volatile Throwable failure;                 // The first exception thrown by a worker
+
+    /**
+     * Creates a parallel simulation, the hierarchies being dealt out round-robin to the workers
+     * @param hierarchies   The hierarchies to feed the trace into
+     * @param threads       The maximum number of worker threads
+     */
+    public ParallelSimulation(List<Hierarchy> hierarchies, int threads) {
+        super(hierarchies);
+        int workerCount = Math.max(1, Math.min(threads, this.hierarchies.length));
+        int blockCount = BLOCKS_PER_WORKER + 1;
+        this.freeBlocks = new ArrayBlockingQueue<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            this.freeBlocks.add(new TraceBlock(this.lineSizes));
+        }
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            this.workers[i] = new Worker(i, workerCount, blockCount);
+        }
+    }
+
+    /**
+     * Reads the trace into blocks and publishes each one to every worker, waiting for the workers to finish before returning
+     * @param trace The trace to simulate
+     * @return      The number of accesses in the trace
+     */
+    public long run(TraceReader trace) throws IOException, InterruptedException {
+        Thread[] threads = new Thread[this.workers.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this.workers[i], "simulation-worker-" + i);
+            threads[i].start();
+        }
+
+        long accesses = 0;
+        boolean finished = false;
+        try {
+            while (true) {
+                TraceBlock block = this.freeBlocks.take();
+                int n = block.fill(trace);
+                // an empty block tells the workers that the trace has ended
+                block.retain(this.workers.length);
+                for (Worker worker : this.workers) {
+                    worker.queue.put(block);
+                }
+                if (n == 0) {
+                    break;
+                }
+                accesses += n;
+            }
+            finished = true;
+        }
+        finally {
+            // if reading the trace failed the workers will never see the end of the trace, so they are stopped instead
+            for (Thread thread : threads) {
+                if (!finished) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        if (this.failure != null) {
+            throw new IOException("Simulation worker failed", this.failure);
+        }
+        return accesses;
+    }
+
+    /**
+     * A worker thread simulating every hierarchy whose position is congruent to its id modulo the number of workers
+     */
+    private class Worker implements Runnable {
+        private final int id;
+        private final int stride;
+        private final BlockingQueue<TraceBlock> queue;
+
+        Worker(int id, int stride, int capacity) {
+            this.id = id;
+            this.stride = stride;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    TraceBlock block = this.queue.take();
+                    boolean end = block.getCount() == 0;
+                    // after a failure the worker keeps draining its queue so that the reader never blocks on it
+                    if (!end && ParallelSimulation.this.failure == null) {
+                        try {
+                            for (int i = this.id; i < ParallelSimulation.this.hierarchies.length; i += this.stride) {
+                                ParallelSimulation.this.feed(i, block);
+                            }
+                        }
+                        catch (RuntimeException | Error e) {
+                            ParallelSimulation.this.failure = e;
+                        }
+                    }
+                    if (block.release()) {
+                        ParallelSimulation.this.freeBlocks.put(block);
+                    }
+                    if (end) {
+                        return;
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
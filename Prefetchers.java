@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Base class of the hardware prefetchers that can be attached to a cache. A prefetcher watches the cache lines demanded from its cache
+ * and suggests lines to load ahead of time, the cache dropping any it already holds. Each prefetcher's tables are fixed size
+ * primitive arrays, so nothing is allocated per access. Prefetchers work on line numbers, being addresses with the offset shifted away
+ */
+abstract class Prefetcher {
+    protected final int degree;     // The number of lines suggested each time the prefetcher fires
+
+    /**
+     * Creates the prefetcher named by a cache config's prefetcher. The degree has to be less than the number of sets in the cache,
+     * or than its number of ways for a cache of a single set, as otherwise the lines following a miss wrap back onto its set
+     * and can evict the line that was just demanded
+     * @param name      One of next_line, stride, and stream
+     * @param degree    The number of lines to suggest each time, 0 for the prefetcher's default
+     * @param cache     The name of the cache, for the error message
+     * @param sets      The number of sets in the cache
+     * @param ways      The number of lines in each set
+     * @return          The prefetcher
+     */
+    static Prefetcher create(String name, int degree, String cache, int sets, int ways) {
+        if (degree < 0) {
+            throw new IllegalArgumentException("The prefetch_degree of " + cache + " cannot be negative");
+        }
+        Prefetcher prefetcher;
+        switch (name) {
+            case "next_line":
+                prefetcher = new NextLinePrefetcher(degree > 0 ? degree : 1);
+                break;
+            case "stride":
+                prefetcher = new StridePrefetcher(degree > 0 ? degree : 2);
+                break;
+            case "stream":
+                prefetcher = new StreamPrefetcher(degree > 0 ? degree : 4);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown prefetcher " + name + ", expected next_line, stride or stream");
+        }
+        int maxDegree = (sets > 1 ? sets : ways) - 1;
+        if (prefetcher.getDegree() > maxDegree) {
+            throw new IllegalArgumentException("The prefetch_degree of " + cache + " is " + prefetcher.getDegree() + ", but has to be between 1 and "
+                    + maxDegree + " so that prefetches do not wrap back onto the set of the line that missed");
+        }
+        return prefetcher;
+    }
+
+    protected Prefetcher(int degree) {
+        this.degree = degree;
+    }
+
+    /**
+     * Returns the most lines a single call to observe can suggest
+     * @return An integer
+     */
+    int getDegree() {
+        return this.degree;
+    }
+
+    /**
+     * Watches a demand access to the cache
+     * @param line      The line number accessed
+     * @param trigger   Whether the access missed, or was the first use of a prefetched line, which is when a prefetcher missing
+     *                  nothing would have missed
+     * @param out       Where to write the suggested line numbers, with room for getDegree of them
+     * @return          The number of lines suggested
+     */
+    abstract int observe(long line, boolean trigger, long[] out);
+
+    /**
+     * Writes the prefetcher's tables to a checkpoint, prefetchers without tables writing nothing
+     * @param out The writer
+     */
+    void save(StateWriter out) throws IOException {
+    }
+
+    /**
+     * Restores what save wrote
+     * @param in The reader
+     */
+    void load(StateReader in) throws IOException {
+    }
+}
+
+/**
+ * Suggests the lines following a line that missed, tagged so that the first use of a prefetched line keeps a sequential run going
+ */
+class NextLinePrefetcher extends Prefetcher {
+    public NextLinePrefetcher(int degree) {
+        super(degree);
+    }
+
+    int observe(long line, boolean trigger, long[] out) {
+        if (!trigger) {
+            return 0;
+        }
+        for (int k = 0; k < this.degree; k++) {
+            out[k] = line + k + 1;
+        }
+        return this.degree;
+    }
+}
+
+/**
+ * Detects constant strides without program counters by keeping one entry per region of memory, as accesses to the same region
+ * tend to come from the same loop. An entry's stride is trusted once it has been seen twice in a row, and forgotten after two mismatches
+ */
+class StridePrefetcher extends Prefetcher {
+    private static final int ENTRIES = 64;          // The size of the table, a power of two
+    private static final int REGION_SHIFT = 6;      // Regions are 64 lines, 4KB with 64 byte lines
+    private static final int CONFIDENT = 2;
+    private static final int MAX_CONFIDENCE = 3;
+
+    private final long[] regions = new long[ENTRIES];   // The region held by each entry, -1 for none
+    private final long[] last = new long[ENTRIES];      // The last line accessed in the region
+    private final long[] strides = new long[ENTRIES];   // The stride between the region's last two accesses
+    private final byte[] confidence = new byte[ENTRIES];
+
+    public StridePrefetcher(int degree) {
+        super(degree);
+        Arrays.fill(this.regions, -1);
+    }
+
+    int observe(long line, boolean trigger, long[] out) {
+        long region = line >> REGION_SHIFT;
+        int i = LongHashSet.mix(region) & ENTRIES - 1;
+        if (this.regions[i] != region) {
+            this.regions[i] = region;
+            this.last[i] = line;
+            this.strides[i] = 0;
+            this.confidence[i] = 0;
+            return 0;
+        }
+        long stride = line - this.last[i];
+        if (stride == 0) {
+            return 0;
+        }
+        this.last[i] = line;
+        if (stride == this.strides[i]) {
+            if (this.confidence[i] < MAX_CONFIDENCE) {
+                this.confidence[i]++;
+            }
+        }
+        else if (this.confidence[i] > 0) {
+            this.confidence[i]--;
+        }
+        else {
+            this.strides[i] = stride;
+        }
+        if (this.confidence[i] < CONFIDENT) {
+            return 0;
+        }
+        for (int k = 0; k < this.degree; k++) {
+            out[k] = line + stride * (k + 1);
+        }
+        return this.degree;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putLongs(this.regions);
+        out.putLongs(this.last);
+        out.putLongs(this.strides);
+        out.putBytes(this.confidence);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getLongs(this.regions);
+        in.getLongs(this.last);
+        in.getLongs(this.strides);
+        in.getBytes(this.confidence);
+    }
+}
+
+/**
+ * Stream buffers, each following a run of misses through memory. A miss close to the last miss of a stream moves the stream on,
+ * the lines ahead of it being suggested once it has moved the same way twice, while a miss near no stream replaces the least recently
+ * used stream. Hits on prefetched lines move streams on as well, so a stream keeps running ahead of the accesses it covers
+ */
+class StreamPrefetcher extends Prefetcher {
+    private static final int STREAMS = 16;
+    private static final int WINDOW = 16;           // How many lines away from a stream's last line an access can be to belong to it
+
+    private final long[] last = new long[STREAMS];      // The last line of each stream, -1 for a free stream
+    private final byte[] direction = new byte[STREAMS]; // 1 or -1 once a stream's direction is known, 0 while it is training
+    private final long[] used = new long[STREAMS];      // When each stream was last used, for picking one to replace
+    private long clock;
+
+    public StreamPrefetcher(int degree) {
+        super(degree);
+        Arrays.fill(this.last, -1);
+    }
+
+    int observe(long line, boolean trigger, long[] out) {
+        if (!trigger) {
+            return 0;
+        }
+        this.clock++;
+        int victim = 0;
+        for (int i = 0; i < STREAMS; i++) {
+            long distance = line - this.last[i];
+            if (this.last[i] >= 0 && distance != 0 && Math.abs(distance) <= WINDOW) {
+                byte direction = (byte) (distance > 0 ? 1 : -1);
+                boolean turned = this.direction[i] != direction;    // a stream has to move the same way twice before it prefetches
+                this.direction[i] = direction;
+                this.last[i] = line;
+                this.used[i] = this.clock;
+                if (turned) {
+                    return 0;
+                }
+                for (int k = 0; k < this.degree; k++) {
+                    out[k] = line + direction * (k + 1);
+                }
+                return this.degree;
+            }
+            if (this.used[i] < this.used[victim]) {
+                victim = i;
+            }
+        }
+        this.last[victim] = line;
+        this.direction[victim] = 0;
+        this.used[victim] = this.clock;
+        return 0;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putLongs(this.last);
+        out.putBytes(this.direction);
+        out.putLongs(this.used);
+        out.putLong(this.clock);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getLongs(this.last);
+        in.getBytes(this.direction);
+        in.getLongs(this.used);
+        this.clock = in.getLong();
+    }
+}
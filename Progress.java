@@ -0,0 +1,188 @@
+import java.io.PrintStream;
+import java.util.Locale;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Timespan;
+
+/**
+ * Reports how a run is going every so often, as a json line per report when asked to and as JFR events whenever a flight recording
+ * is running. The simulation loop times the parsing and the simulating of each block and hands them over after every block,
+ * so between reports the only cost is reading the clock twice a block
+ */
+class Progress {
+    static final long DEFAULT_INTERVAL = 1_000_000_000L;   // How many nanoseconds apart the JFR events are when no json lines are asked for
+
+    private final Hierarchy[] hierarchies;
+    private PrintStream out;            // Where the json lines go, null for only JFR events
+    private long interval;              // How many nanoseconds apart reports are
+    private long startTime;
+    private long nextReport;
+    private long lastTime;
+    private long lastAccesses;          // The number of accesses into the trace at the last report
+    private long parseTime;             // Nanoseconds spent reading the trace and splitting it into cache lines
+    private long simulateTime;          // Nanoseconds spent feeding the blocks into the hierarchies
+
+    /**
+     * Creates a reporter for the given hierarchies, only emitting JFR events unless print is called
+     * @param hierarchies The hierarchies whose hit rates are reported
+     */
+    public Progress(Hierarchy[] hierarchies) {
+        this.hierarchies = hierarchies;
+        this.interval = DEFAULT_INTERVAL;
+    }
+
+    /**
+     * Prints a json line for each report
+     * @param out       Where to print the json lines
+     * @param interval  How many nanoseconds apart to report
+     */
+    public void print(PrintStream out, long interval) {
+        this.out = out;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts timing a run
+     * @param accesses The number of accesses into the trace the run starts at, when carrying on from a checkpoint
+     */
+    public void start(long accesses) {
+        this.startTime = System.nanoTime();
+        this.nextReport = this.startTime + this.interval;
+        this.lastTime = this.startTime;
+        this.lastAccesses = accesses;
+    }
+
+    /**
+     * Counts the time taken by a block, reporting if a report is due
+     * @param accesses  The number of accesses into the trace once the block has been simulated
+     * @param parse     Nanoseconds spent reading the block
+     * @param simulate  Nanoseconds spent simulating the block
+     * @param now       The time after simulating the block
+     */
+    public void update(long accesses, long parse, long simulate, long now) {
+        this.parseTime += parse;
+        this.simulateTime += simulate;
+        if (now >= this.nextReport) {
+            this.report(accesses, now);
+            this.nextReport = now + this.interval;
+        }
+    }
+
+    /**
+     * Emits the JFR events if they are being recorded and prints the json line if asked to
+     * @param accesses  The number of accesses into the trace
+     * @param now       The current time
+     */
+    private void report(long accesses, long now) {
+        double rate = (accesses - this.lastAccesses) * 1e9 / (now - this.lastTime);
+        this.lastAccesses = accesses;
+        this.lastTime = now;
+
+        // creating an event loads the whole of JFR, so nothing is created until a recording has been started
+        ProgressEvent event = FlightRecorder.isInitialized() ? new ProgressEvent() : null;
+        if (event != null && event.isEnabled()) {
+            event.accesses = accesses;
+            event.accessesPerSecond = rate;
+            event.parseTime = this.parseTime;
+            event.simulateTime = this.simulateTime;
+            event.commit();
+            for (Hierarchy hierarchy : this.hierarchies) {
+                Cache[] caches = hierarchy.getCaches();
+                for (int i = 0; i < caches.length; i++) {
+                    CacheProgressEvent cacheEvent = new CacheProgressEvent();
+                    cacheEvent.hierarchy = hierarchy.getName();
+                    cacheEvent.cache = caches[i].getName();
+                    cacheEvent.level = i + 1;
+                    cacheEvent.hits = caches[i].getHits();
+                    cacheEvent.misses = caches[i].getMisses();
+                    cacheEvent.hitRate = hitRate(caches[i]);
+                    cacheEvent.commit();
+                }
+            }
+        }
+
+        if (this.out != null) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format(Locale.ROOT, "{\"accesses\": %d, \"seconds\": %.3f, \"accesses_per_second\": %.0f, \"parse_seconds\": %.3f, \"simulate_seconds\": %.3f, \"hierarchies\": [",
+                    accesses, (now - this.startTime) / 1e9, rate, this.parseTime / 1e9, this.simulateTime / 1e9));
+            for (int h = 0; h < this.hierarchies.length; h++) {
+                Hierarchy hierarchy = this.hierarchies[h];
+                line.append(h > 0 ? ", {" : "{");
+                if (hierarchy.getName() != null) {
+                    line.append("\"name\": \"").append(hierarchy.getName()).append("\", ");
+                }
+                line.append("\"caches\": [");
+                Cache[] caches = hierarchy.getCaches();
+                for (int i = 0; i < caches.length; i++) {
+                    line.append(String.format(Locale.ROOT, "%s{\"name\": \"%s\", \"hits\": %d, \"misses\": %d, \"hit_rate\": %.6f}",
+                            i > 0 ? ", " : "", caches[i].getName(), caches[i].getHits(), caches[i].getMisses(), hitRate(caches[i])));
+                }
+                line.append("]}");
+            }
+            line.append("]}");
+            this.out.println(line);
+        }
+    }
+
+    private static double hitRate(Cache cache) {
+        long accesses = cache.getHits() + cache.getMisses();
+        return accesses == 0 ? 0 : (double) cache.getHits() / accesses;
+    }
+}
+
+/**
+ * JFR event for the progress of a run, emitted at each report
+ */
+@Name("cachesim.Progress")
+@Label("Simulation Progress")
+@Category("Cache Simulator")
+@Description("How far into the trace a run is and where its time has gone")
+class ProgressEvent extends Event {
+    @Label("Accesses")
+    long accesses;
+
+    @Label("Accesses per Second")
+    @Description("Accesses simulated per second since the last report")
+    double accessesPerSecond;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label("Simulate Time")
+    @Timespan
+    long simulateTime;
+}
+
+/**
+ * JFR event for the counts of one cache at a report
+ */
+@Name("cachesim.CacheProgress")
+@Label("Cache Progress")
+@Category("Cache Simulator")
+class CacheProgressEvent extends Event {
+    @Label("Hierarchy")
+    String hierarchy;
+
+    @Label("Cache")
+    String cache;
+
+    @Label("Level")
+    int level;
+
+    @Label("Hits")
+    long hits;
+
+    @Label("Misses")
+    long misses;
+
+    @Label("Hit Rate")
+    @Percentage
+    double hitRate;
+}
@@ -1,27 +1,168 @@
+import java.io.IOException;
 import java.util.*;
 
-class LRU {
-    private final LinkedHashSet<Integer>[] lru;                  // Linked HashSet of Linked List Nodes, the index being a set number
+/**
+ * Base class of every replacement policy. NWayAssociative holds its policy in a final field and calls it on every hit, insert, and
+ * eviction, so a run using a handful of policies keeps those call sites mono or bimorphic for the JIT to inline.
+ * Policies keep their per set state in flat primitive arrays, the state of cache line i of set n usually living at n * setSize + i,
+ * and allocate nothing after construction.
+ */
+abstract class ReplacementPolicy {
+    /**
+     * Creates the policy named by a cache config's replacement_policy, defaulting to round-robin when the name is missing or unknown
+     * @param name      The name of the policy
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
+     * @return          The policy
+     */
+    static ReplacementPolicy create(String name, int setCount, int setSize) {
+        if (name == null) {
+            return new RoundRobin();
+        }
+        switch (name) {
+            case "lru":
+                return new LRU(setCount, setSize);
+            case "lfu":
+                return new LFU(setCount, setSize);
+            case "plru":
+                return new TreePLRU(setCount, setSize);
+            case "bit_plru":
+                return new BitPLRU(setCount, setSize);
+            case "srrip":
+                return new RRIP(setCount, setSize, RRIP.STATIC);
+            case "brrip":
+                return new RRIP(setCount, setSize, RRIP.BIMODAL);
+            case "drrip":
+                return new RRIP(setCount, setSize, RRIP.DYNAMIC);
+            case "random":
+                return new RandomReplacement(setCount, setSize);
+            default:
+                return new RoundRobin();
+        }
+    }
+
+    /**
+     * Called when a lookup hits a cache line
+     * @param index     The set index
+     * @param cacheLine The cache line that hit
+     */
+    abstract void touch(int index, int cacheLine);
+
+    /**
+     * Called when a tag is loaded into a cache line
+     * @param index     The set index
+     * @param cacheLine The cache line loaded into
+     * @param demand    Whether the line was loaded for a demand miss, rather than by a prefetch or as a victim moving down a level
+     */
+    abstract void insert(int index, int cacheLine, boolean demand);
+
+    /**
+     * Picks the cache line to evict from a full set
+     * @param index     The set index
+     * @param next      The cache line the set's round-robin pointer is on
+     * @return          The cache line to evict
+     */
+    abstract int victim(int index, int next);
+
+    /**
+     * Called when a cache line is emptied
+     * @param index     The set index
+     * @param cacheLine The cache line emptied
+     */
+    void remove(int index, int cacheLine) {
+    }
+
+    /**
+     * Writes the policy's state to a checkpoint, policies keeping no state of their own writing nothing
+     * @param out The writer
+     */
+    void save(StateWriter out) throws IOException {
+    }
+
+    /**
+     * Restores what save wrote, into a policy created for the same cache geometry
+     * @param in The reader
+     */
+    void load(StateReader in) throws IOException {
+    }
+
+    /**
+     * Returns whether the policy's decisions for a set only depend on that set's accesses, which partitioning a cache by set relies on
+     * @return A boolean
+     */
+    boolean isSetIndependent() {
+        return true;
+    }
+}
+
+/**
+ * Evicts the cache lines of a set in turn, using the set's round-robin pointer kept by the cache
+ */
+class RoundRobin extends ReplacementPolicy {
+    void touch(int index, int cacheLine) {
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+    }
+
+    int victim(int index, int next) {
+        return next;
+    }
+}
+
+/**
+ * Least recently used ordering for every set of a cache, kept as an intrusive doubly linked list per set over flat primitive arrays.
+ * A cache line's links live at position index * setSize + cacheLine, so nothing is allocated after construction
+ */
+class LRU extends ReplacementPolicy {
+    private static final int NONE = -1;
+    private final int setSize;
+    private final int[] prev;           // The cache line used just before each cache line, NONE for the head of a set's list
+    private final int[] next;           // The cache line used just after each cache line, NONE for the tail of a set's list
+    private final boolean[] linked;     // Whether each cache line is currently in its set's list
+    private final int[] head;           // The least recently used cache line of each set, NONE if the set's list is empty
+    private final int[] tail;           // The most recently used cache line of each set, NONE if the set's list is empty
 
     /**
      * Constructor for an LRU Cache, creates one for each set in the cache
-     * @param setCount The number of sets in the cache
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
      */
-    public LRU(int setCount) {
-        this.lru = new LinkedHashSet[setCount];
-        for (int i = 0; i < setCount; i++) {
-            this.lru[i] = new LinkedHashSet<>();
-        }
+    public LRU(int setCount, int setSize) {
+        this.setSize = setSize;
+        this.prev = new int[setCount * setSize];
+        this.next = new int[setCount * setSize];
+        this.linked = new boolean[setCount * setSize];
+        this.head = new int[setCount];
+        this.tail = new int[setCount];
+        Arrays.fill(this.head, NONE);
+        Arrays.fill(this.tail, NONE);
     }
 
     /**
-     * Updates the LRU Cache when told
+     * Updates the LRU Cache when told, moving the cache line to the most recently used end of its set's list
      * @param index     The index of a given set
      * @param cacheLine The tag we would like to update
      */
     public void update(int index, int cacheLine) {
-        this.lru[index].remove(cacheLine);
-        this.lru[index].add(cacheLine);
+        int base = index * this.setSize;
+        if (this.linked[base + cacheLine]) {
+            if (this.tail[index] == cacheLine) {
+                return;     // already the most recently used
+            }
+            this.unlink(index, base, cacheLine);
+        }
+        int last = this.tail[index];
+        this.prev[base + cacheLine] = last;
+        this.next[base + cacheLine] = NONE;
+        if (last == NONE) {
+            this.head[index] = cacheLine;
+        }
+        else {
+            this.next[base + last] = cacheLine;
+        }
+        this.tail[index] = cacheLine;
+        this.linked[base + cacheLine] = true;
     }
 
     /**
@@ -30,7 +171,46 @@ class LRU {
      * @param cacheLine The tag to remove
      */
     public void remove(int index, int cacheLine) {
-        this.lru[index].remove(cacheLine);
+        int base = index * this.setSize;
+        if (this.linked[base + cacheLine]) {
+            this.unlink(index, base, cacheLine);
+        }
+    }
+
+    /**
+     * Takes a cache line out of its set's list, joining up its neighbours
+     * @param index     The set index
+     * @param base      The position of the set's first cache line in the flat arrays
+     * @param cacheLine The cache line to unlink
+     */
+    private void unlink(int index, int base, int cacheLine) {
+        int before = this.prev[base + cacheLine];
+        int after = this.next[base + cacheLine];
+        if (before == NONE) {
+            this.head[index] = after;
+        }
+        else {
+            this.next[base + before] = after;
+        }
+        if (after == NONE) {
+            this.tail[index] = before;
+        }
+        else {
+            this.prev[base + after] = before;
+        }
+        this.linked[base + cacheLine] = false;
+    }
+
+    void touch(int index, int cacheLine) {
+        this.update(index, cacheLine);
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+        this.update(index, cacheLine);
+    }
+
+    int victim(int index, int next) {
+        return this.getHead(index);
     }
 
     /**
@@ -39,58 +219,56 @@ class LRU {
      * @return      The node of the head of the linked list
      */
     public int getHead(int index) {
-        Iterator<Integer> iter = this.lru[index].iterator();
-        return iter.next();
+        int head = this.head[index];
+        if (head == NONE) {
+            throw new NoSuchElementException("Set " + index + " has no cache lines to evict");
+        }
+        return head;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putInts(this.prev);
+        out.putInts(this.next);
+        out.putBooleans(this.linked);
+        out.putInts(this.head);
+        out.putInts(this.tail);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getInts(this.prev);
+        in.getInts(this.next);
+        in.getBooleans(this.linked);
+        in.getInts(this.head);
+        in.getInts(this.tail);
     }
 }
 
-class LFU {
-    private final HashMap<Integer, LFUNode>[] nodeMap;              // An array of hashmaps, index representing a set, key being a cache line, value being a node
-                                                                    // Custom node is needed so that we can find the node in a frequency in constant time by storing its frequency
-    private final HashMap<Integer, TreeSet<LFUNode>>[] freqSetMap;  // An array of hashmaps, index representing a set, key being a frequency, value being an ordered set
-                                                                    // A TreeSet was chosen for storing the nodes as we need to order by cache line for tie breaking
-                                                                    // Using a TreeSet allows us to find, insert, and remove whilst maintaining an order in log(n) time
-    private final int[] minFreqMap;                                 // An array, each index representing a set, value being the minimum frequency for that set
+/**
+ * Least frequently used ordering for every set of a cache, kept as a flat primitive array of use counts at position index * setSize + cacheLine.
+ * Updating and removing a cache line are a single array write, and the victim is found with one pass over the set's counts,
+ * ties going to the lowest cache line index. Nothing is allocated after construction
+ */
+class LFU extends ReplacementPolicy {
+    private final int setSize;
+    private final int[] freq;       // How many times each cache line has been used since it was loaded, 0 if it is not tracked
 
     /**
      * Constructor for an LFU Cache, creates one for each set in the cache
-     * @param setCount The number of sets in the cache
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
      */
-    public LFU(int setCount) {
-        this.nodeMap = new HashMap[setCount];
-        this.freqSetMap = new HashMap[setCount];
-        this.minFreqMap = new int[setCount];
-        for (int i = 0; i < setCount; i++) {
-            this.nodeMap[i] = new HashMap<>();
-            this.freqSetMap[i] = new HashMap<>();
-        }
+    public LFU(int setCount, int setSize) {
+        this.setSize = setSize;
+        this.freq = new int[setCount * setSize];
     }
 
     /**
-     * Updates a cache line in a given set, either by inserting it into its appropriate frequency, or increasing its frequency
+     * Updates a cache line in a given set, either by starting it at a frequency of one, or increasing its frequency
      * @param index         The index of the set to update
      * @param cacheLine     The cache line to be updated
      */
-    protected void update(int index, int cacheLine) {
-        // if already cached, move cache line into a higher frequency queue
-        if (this.nodeMap[index].containsKey(cacheLine)) {
-            LFUNode node = this.nodeMap[index].get(cacheLine);
-            int freq = node.getFreq();
-            this.freqSetMap[index].get(freq).remove(node);
-            if (this.minFreqMap[index] == freq && this.freqSetMap[index].get(freq).size() == 0) {
-                this.freqSetMap[index].remove(freq);
-                this.minFreqMap[index]++;
-            }
-            node.setFreq(++freq);
-            this.appendFreqNode(index, freq, node);
-        }
-        // otherwise create a new node to represent the cache line and insert it into the frequency 1 queue
-        else {
-            LFUNode node = new LFUNode(cacheLine, 1);
-            this.nodeMap[index].put(cacheLine, node);
-            this.appendFreqNode(index, 1, node);
-            this.minFreqMap[index] = 1;
-        }
+    public void update(int index, int cacheLine) {
+        this.freq[index * this.setSize + cacheLine]++;
     }
 
     /**
@@ -99,32 +277,369 @@ class LFU {
      * @param cacheLine     The cache line to remove
      */
     public void remove(int index, int cacheLine) {
-        LFUNode node = this.nodeMap[index].get(cacheLine);
-        this.freqSetMap[index].get(node.getFreq()).remove(node);
-        this.nodeMap[index].remove(cacheLine);
+        this.freq[index * this.setSize + cacheLine] = 0;
+    }
+
+    void touch(int index, int cacheLine) {
+        this.update(index, cacheLine);
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+        this.update(index, cacheLine);
+    }
+
+    int victim(int index, int next) {
+        return this.getLFUCacheLine(index);
     }
 
     /**
-     * Creates a new TreeSet for a frequency if one does not exist, then inserts the given node into the TreeSet
-     * @param index We want to update the LRU for the given set
-     * @param freq  The frequency we want to add the node into
-     * @param node  The node we want to add
+     * Returns the least frequently used cache line in the LFU cache, the lowest cache line index winning a tie
+     * @param index The index we want to find the LFU cache line for
+     * @return      The index of the LFU cache line
      */
-    protected void appendFreqNode(int index, int freq, LFUNode node) {
-        if (!this.freqSetMap[index].containsKey(freq)) {
-            this.freqSetMap[index].put(freq, new TreeSet<>(Comparator.comparing(LFUNode::getCacheLine)));   // tie breaking on cache line index
+    public int getLFUCacheLine(int index) {
+        int[] freq = this.freq;
+        int base = index * this.setSize;
+        int cacheLine = -1;
+        int minFreq = Integer.MAX_VALUE;
+        for (int i = 0; i < this.setSize; i++) {
+            int f = freq[base + i];
+            if (f != 0 && f < minFreq) {
+                minFreq = f;
+                cacheLine = i;
+            }
+        }
+        if (cacheLine < 0) {
+            throw new NoSuchElementException("Set " + index + " has no cache lines to evict");
         }
-        this.freqSetMap[index].get(freq).add(node);
+        return cacheLine;
     }
 
+    void save(StateWriter out) throws IOException {
+        out.putInts(this.freq);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getInts(this.freq);
+    }
+}
+
+/**
+ * Tree pseudo LRU, each set keeping a binary tree of bits over its cache lines with every bit pointing towards the half of its subtree
+ * that was used less recently. The tree covers the set size rounded up to a power of two, halves holding no cache lines never being picked
+ */
+class TreePLRU extends ReplacementPolicy {
+    private final int setSize;
+    private final int leaves;       // The set size rounded up to a power of two
+    private final boolean[] bits;   // Each set's tree at index * leaves, node i having children 2i + 1 and 2i + 2, true pointing right
+
     /**
-     * Returns the least frequently used cache line in the LFU cache
-     * @param index The index we want to find the LFU cache line for
-     * @return      The tag of the LFU cache line
+     * Creates a tree for every set
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
      */
-    public int getLFUCacheLine(int index) {
-        int minFreq = this.minFreqMap[index];
-        LFUNode lfuNode = this.freqSetMap[index].get(minFreq).first();
-        return lfuNode.getCacheLine();
+    public TreePLRU(int setCount, int setSize) {
+        this.setSize = setSize;
+        this.leaves = setSize <= 1 ? 1 : Integer.highestOneBit(setSize - 1) << 1;
+        this.bits = new boolean[setCount * this.leaves];
+    }
+
+    void touch(int index, int cacheLine) {
+        this.pointAway(index, cacheLine);
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+        this.pointAway(index, cacheLine);
+    }
+
+    /**
+     * Walks from the root down to a cache line, pointing every bit on the way at the other half
+     * @param index     The set index
+     * @param cacheLine The cache line that was used
+     */
+    private void pointAway(int index, int cacheLine) {
+        int base = index * this.leaves;
+        int node = 0;
+        int low = 0;
+        int width = this.leaves;
+        while (width > 1) {
+            width >>= 1;
+            boolean right = cacheLine >= low + width;
+            this.bits[base + node] = !right;
+            if (right) {
+                low += width;
+                node = 2 * node + 2;
+            }
+            else {
+                node = 2 * node + 1;
+            }
+        }
+    }
+
+    int victim(int index, int next) {
+        int base = index * this.leaves;
+        int node = 0;
+        int low = 0;
+        int width = this.leaves;
+        while (width > 1) {
+            width >>= 1;
+            // the right half is only followed if it holds at least one cache line
+            boolean right = this.bits[base + node] && low + width < this.setSize;
+            if (right) {
+                low += width;
+                node = 2 * node + 2;
+            }
+            else {
+                node = 2 * node + 1;
+            }
+        }
+        return low;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putBooleans(this.bits);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getBooleans(this.bits);
+    }
+}
+
+/**
+ * Bit pseudo LRU, also known as MRU bits. Using a cache line sets its bit, and once every bit of a set is set all but that line's are
+ * cleared. The victim is the lowest cache line whose bit is clear
+ */
+class BitPLRU extends ReplacementPolicy {
+    private final int setSize;
+    private final boolean[] used;   // Each cache line's bit at index * setSize + cacheLine
+    private final int[] count;      // The number of bits set in each set
+
+    /**
+     * Creates the bits for every set
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
+     */
+    public BitPLRU(int setCount, int setSize) {
+        this.setSize = setSize;
+        this.used = new boolean[setCount * setSize];
+        this.count = new int[setCount];
+    }
+
+    void touch(int index, int cacheLine) {
+        this.mark(index, cacheLine);
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+        this.mark(index, cacheLine);
+    }
+
+    private void mark(int index, int cacheLine) {
+        int base = index * this.setSize;
+        if (this.used[base + cacheLine]) {
+            return;
+        }
+        this.used[base + cacheLine] = true;
+        if (++this.count[index] == this.setSize) {
+            Arrays.fill(this.used, base, base + this.setSize, false);
+            this.used[base + cacheLine] = true;
+            this.count[index] = 1;
+        }
+    }
+
+    void remove(int index, int cacheLine) {
+        int base = index * this.setSize;
+        if (this.used[base + cacheLine]) {
+            this.used[base + cacheLine] = false;
+            this.count[index]--;
+        }
+    }
+
+    int victim(int index, int next) {
+        int base = index * this.setSize;
+        for (int i = 0; i < this.setSize; i++) {
+            if (!this.used[base + i]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putBooleans(this.used);
+        out.putInts(this.count);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getBooleans(this.used);
+        in.getInts(this.count);
+    }
+}
+
+/**
+ * Re-reference interval prediction with 2 bit prediction values (Jaleel et al., ISCA 2010). Each cache line holds how far away its
+ * next use is predicted to be, hits predicting it near and the victim being the first line predicted distant, every line in the set
+ * ageing until one is. Static RRIP inserts lines as long, bimodal RRIP inserts them as distant bar one in 32 inserted as long,
+ * and dynamic RRIP picks between the two with set dueling, a few leader sets always using one or the other and a saturating counter
+ * of their misses deciding what the remaining sets use
+ */
+class RRIP extends ReplacementPolicy {
+    static final int STATIC = 0;
+    static final int BIMODAL = 1;
+    static final int DYNAMIC = 2;
+
+    private static final byte DISTANT = 3;          // The largest prediction value of 2 bits
+    private static final byte LONG = DISTANT - 1;
+    private static final int BIMODAL_THROTTLE = 32; // Bimodal insertion inserts one in this many lines as long
+    private static final int LEADER_SETS = 32;      // The number of leader sets for each of static and bimodal insertion
+    private static final int PSEL_MAX = (1 << 10) - 1;
+
+    private final int setSize;
+    private final int mode;
+    private final byte[] rrpv;          // Each cache line's prediction value at index * setSize + cacheLine
+    private final long[] random;        // Each set's xorshift state deciding bimodal insertions, kept per set so that sets stay independent
+    private final byte[] leader;        // For dynamic RRIP, whether each set leads static (1), bimodal (2), or follows (0)
+    private int psel = PSEL_MAX / 2;    // Counts up on static leader misses and down on bimodal leader misses
+
+    /**
+     * Creates the prediction values for every set
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
+     * @param mode      One of STATIC, BIMODAL, and DYNAMIC
+     */
+    public RRIP(int setCount, int setSize, int mode) {
+        this.setSize = setSize;
+        this.mode = mode;
+        this.rrpv = new byte[setCount * setSize];
+        Arrays.fill(this.rrpv, DISTANT);
+        this.random = new long[setCount];
+        for (int i = 0; i < setCount; i++) {
+            this.random[i] = 0x9E3779B97F4A7C15L * (i + 1);
+        }
+        this.leader = new byte[setCount];
+        if (mode == DYNAMIC) {
+            // spreading the leader sets evenly across the cache, a static leader followed by a bimodal one
+            int leaders = Math.max(1, Math.min(LEADER_SETS, setCount / 2));
+            int stride = Math.max(1, setCount / (2 * leaders));
+            for (int i = 0; i < leaders; i++) {
+                this.leader[2 * i * stride] = 1;
+                if ((2 * i + 1) * stride < setCount) {
+                    this.leader[(2 * i + 1) * stride] = 2;
+                }
+            }
+        }
+    }
+
+    void touch(int index, int cacheLine) {
+        this.rrpv[index * this.setSize + cacheLine] = 0;
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+        boolean bimodal;
+        switch (this.mode) {
+            case STATIC:
+                bimodal = false;
+                break;
+            case BIMODAL:
+                bimodal = true;
+                break;
+            default:
+                // demand insertions are misses, so those into leader sets train the counter, prefetches and victims from above not being misses
+                if (demand && this.leader[index] == 1 && this.psel < PSEL_MAX) {
+                    this.psel++;
+                }
+                else if (demand && this.leader[index] == 2 && this.psel > 0) {
+                    this.psel--;
+                }
+                bimodal = this.leader[index] == 2 || this.leader[index] == 0 && this.psel > PSEL_MAX / 2;
+        }
+        byte value = LONG;
+        if (bimodal) {
+            long x = this.random[index];
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            this.random[index] = x;
+            value = Long.remainderUnsigned(x, BIMODAL_THROTTLE) == 0 ? LONG : DISTANT;
+        }
+        this.rrpv[index * this.setSize + cacheLine] = value;
+    }
+
+    int victim(int index, int next) {
+        int base = index * this.setSize;
+        byte[] rrpv = this.rrpv;
+        // ageing the whole set by however much it takes for its most distant line to reach DISTANT
+        byte max = 0;
+        for (int i = base; i < base + this.setSize; i++) {
+            max = (byte) Math.max(max, rrpv[i]);
+        }
+        int age = DISTANT - max;
+        int victim = -1;
+        for (int i = base; i < base + this.setSize; i++) {
+            rrpv[i] += age;
+            if (victim < 0 && rrpv[i] == DISTANT) {
+                victim = i - base;
+            }
+        }
+        return victim;
+    }
+
+    boolean isSetIndependent() {
+        return this.mode != DYNAMIC;
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putBytes(this.rrpv);
+        out.putLongs(this.random);
+        out.putInt(this.psel);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getBytes(this.rrpv);
+        in.getLongs(this.random);
+        this.psel = in.getInt();
+    }
+}
+
+/**
+ * Evicts a random cache line, each set drawing from its own seeded xorshift generator so that runs are repeatable
+ */
+class RandomReplacement extends ReplacementPolicy {
+    private final int setSize;
+    private final long[] state;     // Each set's generator state
+
+    /**
+     * Seeds a generator for every set
+     * @param setCount  The number of sets in the cache
+     * @param setSize   The number of cache lines in a set
+     */
+    public RandomReplacement(int setCount, int setSize) {
+        this.setSize = setSize;
+        this.state = new long[setCount];
+        for (int i = 0; i < setCount; i++) {
+            this.state[i] = 0x9E3779B97F4A7C15L * (i + 1);
+        }
+    }
+
+    void touch(int index, int cacheLine) {
+    }
+
+    void insert(int index, int cacheLine, boolean demand) {
+    }
+
+    int victim(int index, int next) {
+        long x = this.state[index];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        this.state[index] = x;
+        return (int) Long.remainderUnsigned(x, this.setSize);
+    }
+
+    void save(StateWriter out) throws IOException {
+        out.putLongs(this.state);
+    }
+
+    void load(StateReader in) throws IOException {
+        in.getLongs(this.state);
     }
 }
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory of the outputs of earlier runs, each kept under a hash of its key so that a run that has been done before can print
+ * its output without reading the trace. Traces are identified by a hash of their contents, which is itself kept under the path,
+ * size and modification time of the trace so that each trace is only hashed once.
+ * Entries are written to temporary files and moved into place, and a lock file held shared while reading and exclusively
+ * while adding or evicting entries lets several processes share the directory. Reading an entry marks it as used by setting
+ * its modification time, and the least recently used entries are evicted once the directory grows past its size limit
+ */
+class ResultCache {
+    private static final String VERSION = "CSRC 1";
+    private static final String SUFFIX = ".result";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final long STALE_TEMPORARY_MILLIS = 24L * 60 * 60 * 1000;   // How old a temporary file left by a failed process has to be to be removed
+
+    private final Path results;     // The outputs, named after the hash of their keys
+    private final Path traces;      // The content hashes of the traces, named after a hash of their path, size and modification time
+    private final Path lock;
+    private final long maxBytes;
+
+    /**
+     * Opens a result cache, creating its directory if missing
+     * @param directory The directory of the cache
+     * @param maxBytes  How many bytes of entries to keep before evicting the least recently used
+     */
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this.results = directory.resolve("results");
+        this.traces = directory.resolve("traces");
+        this.lock = directory.resolve("lock");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.results);
+        Files.createDirectories(this.traces);
+    }
+
+    /**
+     * Returns the output stored under a key
+     * @param key   The key, covering everything the output depends on
+     * @return      The output, or null if there is none
+     */
+    public byte[] get(String key) throws IOException {
+        byte[] entry = this.read(this.results.resolve(hash(VERSION + "\n" + key) + SUFFIX));
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(entry);
+        byte[] stored = new byte[buffer.getInt()];
+        buffer.get(stored);
+        if (!new String(stored, StandardCharsets.UTF_8).equals(key)) {
+            return null;    // a hash collision, the entry being replaced by this run's output
+        }
+        byte[] output = new byte[buffer.remaining()];
+        buffer.get(output);
+        return output;
+    }
+
+    /**
+     * Stores the output of a run under its key, then evicts entries until the cache fits its size limit
+     * @param key       The key, covering everything the output depends on
+     * @param output    The output
+     */
+    public void put(String key, byte[] output) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + bytes.length + output.length);
+        entry.putInt(bytes.length).put(bytes).put(output).flip();
+        this.write(this.results.resolve(hash(VERSION + "\n" + key) + SUFFIX), entry);
+    }
+
+    /**
+     * Returns a hash of the contents of a trace, only reading the trace if it has changed since it was last hashed
+     * @param trace The path of the trace
+     * @return      The SHA-256 of the trace in hex
+     */
+    public String traceHash(Path trace) throws IOException {
+        String id = trace.toAbsolutePath().normalize() + " " + Files.size(trace) + " " + Files.getLastModifiedTime(trace).toMillis();
+        Path path = this.traces.resolve(hash(id));
+        byte[] entry = this.read(path);
+        if (entry != null) {
+            String[] lines = new String(entry, StandardCharsets.UTF_8).split("\n");
+            if (lines.length == 2 && lines[0].equals(id)) {
+                return lines[1];
+            }
+        }
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        String contents = hex(digest.digest());
+        this.write(path, ByteBuffer.wrap((id + "\n" + contents).getBytes(StandardCharsets.UTF_8)));
+        return contents;
+    }
+
+    /**
+     * Returns a hash of the simulator's class files, so that results stored by an older build of the simulator are not handed
+     * back once the code has changed. The classes are either a directory of class files or a jar
+     * @return The SHA-256 of the class files in hex
+     */
+    public static String buildHash() throws IOException {
+        CodeSource source = ResultCache.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            throw new IOException("Cannot find the simulator's class files to identify its build");
+        }
+        Path location;
+        try {
+            location = Paths.get(source.getLocation().toURI());
+        }
+        catch (URISyntaxException e) {
+            throw new IOException("Cannot find the simulator's class files to identify its build", e);
+        }
+        MessageDigest digest = sha256();
+        if (Files.isDirectory(location)) {
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(location)) {
+                classes = files.filter(file -> file.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+            }
+            for (Path file : classes) {
+                digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        }
+        else {
+            digest.update(Files.readAllBytes(location));
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Reads an entry, marking it as used
+     * @param path  The path of the entry
+     * @return      The entry, or null if it does not exist
+     */
+    private byte[] read(Path path) throws IOException {
+        try (FileChannel channel = this.openLock()) {
+            FileLock shared = channel.lock(0, Long.MAX_VALUE, true);
+            try {
+                byte[] entry = Files.readAllBytes(path);
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+                return entry;
+            }
+            finally {
+                shared.release();
+            }
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes an entry to a temporary file, then moves it into place and evicts while holding the lock exclusively
+     * @param path  The path of the entry
+     * @param entry The contents of the entry
+     */
+    private void write(Path path, ByteBuffer entry) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + "." + ProcessHandle.current().pid() + TEMPORARY_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (entry.hasRemaining()) {
+                    channel.write(entry);
+                }
+                channel.force(false);
+            }
+            try (FileChannel channel = this.openLock()) {
+                FileLock exclusive = channel.lock();
+                try {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    this.evict();
+                }
+                finally {
+                    exclusive.release();
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size limit, along with temporary files old enough
+     * to have been left by processes that failed. Only called while holding the lock exclusively
+     */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<FileTime> used = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        for (Path directory : new Path[] {this.results, this.traces}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    try {
+                        FileTime modified = Files.getLastModifiedTime(file);
+                        if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                            if (now - modified.toMillis() > STALE_TEMPORARY_MILLIS) {
+                                Files.deleteIfExists(file);
+                            }
+                            continue;
+                        }
+                        entries.add(file);
+                        used.add(modified);
+                        total += Files.size(file);
+                    }
+                    catch (NoSuchFileException e) {
+                        // a temporary file moved into place by another process
+                    }
+                }
+            }
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(used::get));
+        for (int i = 0; i < order.length && total > this.maxBytes; i++) {
+            Path file = entries.get(order[i]);
+            long size = Files.size(file);
+            Files.delete(file);
+            total -= size;
+        }
+    }
+
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(this.lock, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static String hash(String text) {
+        return hex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every Java platform provides SHA-256
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Approximates a hierarchy's results by simulating only part of the trace, for quick first passes over a design space.
+ * Set sampling only lets through the addresses that fall into one in every setSampling sets of each cache, estimating each
+ * level's miss rate from the sampled sets. Time sampling splits the trace into periods, each simulating warmup accesses to
+ * warm the caches up, then measure accesses which are counted, and skipping the rest, estimating each level's miss rate from
+ * the measured windows. Both can be combined. The miss rates come with 95% confidence intervals, treating each sampled set, or
+ * each window when time sampling, as one sample of a ratio estimator.
+ */
+class Sampler {
+    private static final double Z_95 = 1.96;
+
+    private final Cache[] caches;
+    private final int setSampling;      // One in this many sets are simulated, 1 for every set
+    private final int sampleShift;      // The shift that brings the bits choosing the sampled sets to the bottom
+    private final long period;          // The length of a time sampling period in line accesses, 0 when not time sampling
+    private final long warmup;          // The number of accesses at the start of each period simulated without being counted
+    private final long measure;         // The number of accesses after the warm up that are counted
+    private long position;              // The number of line accesses seen so far, sampled or not
+    private long[] buffer = new long[0];
+
+    private boolean inWindow;           // Whether a measured window is in progress
+    private int windows;                // The number of measured windows so far
+    private final long[] startHits;     // The hits of each level when the current window started
+    private final long[] startMisses;   // The misses of each level when the current window started
+    private final double[] sumMisses;   // Sums over the windows of each level's misses and accesses, with their squares and products
+    private final double[] sumAccesses;
+    private final double[] sumMissesSquared;
+    private final double[] sumAccessesSquared;
+    private final double[] sumProducts;
+
+    /**
+     * Creates a sampler for the given hierarchy
+     * @param hierarchy     The hierarchy to sample
+     * @param setSampling   One in this many sets are simulated, a power of two, 1 for every set
+     * @param period        The length of a time sampling period in line accesses, 0 to simulate the whole trace
+     * @param warmup        The number of accesses simulated at the start of each period to warm the caches up
+     * @param measure       The number of accesses counted after the warm up of each period
+     */
+    public Sampler(Hierarchy hierarchy, int setSampling, long period, long warmup, long measure) {
+        this.caches = hierarchy.getCaches();
+        if (setSampling < 1 || Integer.bitCount(setSampling) != 1) {
+            throw new IllegalArgumentException("Set sampling must be a power of two");
+        }
+        if (period > 0 && (measure <= 0 || warmup < 0 || warmup + measure > period)) {
+            throw new IllegalArgumentException("Time sampling needs 0 <= warmup, 0 < measure, and warmup + measure <= period");
+        }
+        // the sampled sets are picked with address bits just above the largest offset, which are index bits of every level
+        int shift = 0;
+        for (Cache cache : this.caches) {
+            shift = Math.max(shift, cache.getOffsetBitShift());
+        }
+        for (Cache cache : this.caches) {
+            if ((long) setSampling << shift - cache.getOffsetBitShift() > cache.getIndexMask() + 1L) {
+                throw new IllegalArgumentException(cache.getName() + " has too few sets to sample one in " + setSampling);
+            }
+        }
+        this.setSampling = setSampling;
+        this.sampleShift = shift;
+        this.period = period;
+        this.warmup = warmup;
+        this.measure = measure;
+        int levels = this.caches.length;
+        this.startHits = new long[levels];
+        this.startMisses = new long[levels];
+        this.sumMisses = new double[levels];
+        this.sumAccesses = new double[levels];
+        this.sumMissesSquared = new double[levels];
+        this.sumAccessesSquared = new double[levels];
+        this.sumProducts = new double[levels];
+    }
+
+    /**
+     * Feeds the sampled part of a block of line aligned addresses into the hierarchy
+     * @param lines The line aligned addresses
+     * @param count How many of the addresses are in use
+     */
+    public void simulate(long[] lines, int count) {
+        if (this.period == 0) {
+            this.feed(lines, 0, count);
+            this.position += count;
+            return;
+        }
+        int i = 0;
+        while (i < count) {
+            long phase = this.position % this.period;
+            long length;
+            if (phase < this.warmup) {
+                length = this.warmup - phase;
+            }
+            else if (phase < this.warmup + this.measure) {
+                length = this.warmup + this.measure - phase;
+                if (!this.inWindow) {
+                    this.startWindow();
+                }
+            }
+            else {
+                length = this.period - phase;
+            }
+            int n = (int) Math.min(length, count - i);
+            if (phase < this.warmup + this.measure) {
+                this.feed(lines, i, n);
+            }
+            i += n;
+            this.position += n;
+            if (this.inWindow && phase + n == this.warmup + this.measure) {
+                this.endWindow();
+            }
+        }
+    }
+
+    /**
+     * Feeds a run of addresses into the first cache, dropping those outside of the sampled sets
+     * @param lines The line aligned addresses
+     * @param from  The position of the first address of the run
+     * @param count The number of addresses in the run
+     */
+    private void feed(long[] lines, int from, int count) {
+        if (this.setSampling == 1) {
+            if (from == 0) {
+                this.caches[0].checkCache(lines, count);
+                return;
+            }
+            if (this.buffer.length < count) {
+                this.buffer = new long[count];
+            }
+            System.arraycopy(lines, from, this.buffer, 0, count);
+            this.caches[0].checkCache(this.buffer, count);
+            return;
+        }
+        if (this.buffer.length < count) {
+            this.buffer = new long[count];
+        }
+        long mask = this.setSampling - 1;
+        int n = 0;
+        for (int i = from; i < from + count; i++) {
+            if ((lines[i] >> this.sampleShift & mask) == 0) {
+                this.buffer[n++] = lines[i];
+            }
+        }
+        if (n > 0) {
+            this.caches[0].checkCache(this.buffer, n);
+        }
+    }
+
+    private void startWindow() {
+        for (int level = 0; level < this.caches.length; level++) {
+            this.startHits[level] = this.caches[level].getHits();
+            this.startMisses[level] = this.caches[level].getMisses();
+        }
+        this.inWindow = true;
+    }
+
+    private void endWindow() {
+        for (int level = 0; level < this.caches.length; level++) {
+            double misses = this.caches[level].getMisses() - this.startMisses[level];
+            double accesses = this.caches[level].getHits() - this.startHits[level] + misses;
+            this.sumMisses[level] += misses;
+            this.sumAccesses[level] += accesses;
+            this.sumMissesSquared[level] += misses * misses;
+            this.sumAccessesSquared[level] += accesses * accesses;
+            this.sumProducts[level] += misses * accesses;
+        }
+        this.windows++;
+        this.inWindow = false;
+    }
+
+    /**
+     * Closes a window cut short by the end of the trace, to be called once the whole trace has been fed in
+     */
+    public void finish() {
+        if (this.inWindow) {
+            this.endWindow();
+        }
+    }
+
+    /**
+     * Estimates the miss rate of a level along with the half width of its 95% confidence interval
+     * @param level The position of the cache in the hierarchy
+     * @return      The miss rate and the half width, NaN for both if nothing was sampled
+     */
+    public double[] missRate(int level) {
+        double m = 0;
+        double a = 0;
+        double mm = 0;
+        double aa = 0;
+        double ma = 0;
+        int n = 0;
+        if (this.period > 0) {
+            m = this.sumMisses[level];
+            a = this.sumAccesses[level];
+            mm = this.sumMissesSquared[level];
+            aa = this.sumAccessesSquared[level];
+            ma = this.sumProducts[level];
+            n = this.windows;
+        }
+        else {
+            CacheStats stats = this.caches[level].getStats();
+            long[] setHits = stats.getSetHits();
+            long[] setMisses = stats.getSetMisses();
+            for (int i = 0; i < setHits.length; i++) {
+                double setAccesses = setHits[i] + setMisses[i];
+                if (setAccesses > 0) {
+                    m += setMisses[i];
+                    a += setAccesses;
+                    mm += (double) setMisses[i] * setMisses[i];
+                    aa += setAccesses * setAccesses;
+                    ma += setMisses[i] * setAccesses;
+                    n++;
+                }
+            }
+        }
+        if (a == 0) {
+            return new double[] {Double.NaN, Double.NaN};
+        }
+        double rate = m / a;
+        if (n < 2) {
+            return new double[] {rate, Double.NaN};
+        }
+        // variance of the ratio estimator, sum of (m - rate * a)^2 over the samples divided by n (n - 1) times the squared mean of a
+        double residuals = Math.max(0, mm - 2 * rate * ma + rate * rate * aa);
+        double meanAccesses = a / n;
+        double variance = residuals / ((double) n * (n - 1) * meanAccesses * meanAccesses);
+        return new double[] {rate, Z_95 * Math.sqrt(variance)};
+    }
+
+    /**
+     * Estimates how many accesses reach each level over the whole trace, the first level seeing every line access and
+     * each level after that seeing the estimated misses of the one before
+     * @return The estimated accesses for each level followed by the estimated accesses to main memory
+     */
+    public double[] estimatedAccesses() {
+        double[] accesses = new double[this.caches.length + 1];
+        accesses[0] = this.position;
+        for (int level = 0; level < this.caches.length; level++) {
+            double rate = this.missRate(level)[0];
+            accesses[level + 1] = Double.isNaN(rate) ? 0 : accesses[level] * rate;
+        }
+        return accesses;
+    }
+}
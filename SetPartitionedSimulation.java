@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a single cache on several threads by splitting its sets between them.
+ * Every set's state is independent of the others, so as long as each set only ever sees its own addresses in trace order
+ * the hits and misses are exactly those of a sequential run. The calling thread reads the trace and deals each cache line
+ * out to the shard owning its set index, each shard counting its own hits and misses which are added to the cache at the end.
+ * Each shard owns a contiguous range of sets, so that the per set state written by one thread does not share cache lines with another's.
+ */
+class SetPartitionedSimulation extends Simulation {
+    private static final int BATCH_SIZE = 1 << 12;      // The number of addresses handed to a shard at once
+    private static final int BATCHES_PER_SHARD = 8;
+
+    private final Cache cache;
+    private final Shard[] shards;
+    private volatile Throwable failure;                 // The first exception thrown by a shard
+
+    /**
+     * Creates a set partitioned simulation, the hierarchy needing to be a single cache as the sets of lower levels depend on every set above them
+     * @param hierarchies   The hierarchies to simulate, of which there must be one
+     * @param shards        The number of threads to split the sets between
+     */
+    public SetPartitionedSimulation(List<Hierarchy> hierarchies, int shards) {
+        super(hierarchies);
+        if (this.hierarchies.length != 1 || this.hierarchies[0].getCaches().length != 1) {
+            throw new IllegalArgumentException("Partitioning by set needs a config with a single cache");
+        }
+        this.cache = this.hierarchies[0].getCaches()[0];
+        if (this.hierarchies[0].isModellingWrites()) {
+            throw new IllegalArgumentException("Writes are not modelled while partitioning by set");
+        }
+        if (this.hierarchies[0].isPrefetching()) {
+            throw new IllegalArgumentException("Prefetching is not supported while partitioning by set, as prefetches cross sets");
+        }
+        if (this.hierarchies[0].getSampler() != null) {
+            throw new IllegalArgumentException("Sampling is not supported while partitioning by set");
+        }
+        if (this.cache.getStats().isClassifying()) {
+            throw new IllegalArgumentException("Misses cannot be classified while partitioning by set, as the shadow cache spans every set");
+        }
+        if (this.cache instanceof NWayAssociative && !((NWayAssociative) this.cache).getPolicy().isSetIndependent()) {
+            throw new IllegalArgumentException("The " + this.cache.getReplacementPolicy() + " replacement policy shares state between sets, so it cannot be partitioned by set");
+        }
+        int setCount = this.cache.getIndexMask() + 1;
+        this.shards = new Shard[Math.max(1, Math.min(shards, setCount))];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Reads the trace and deals each cache line out to the shard of its set, waiting for the shards to finish before returning
+     * @param trace The trace to simulate
+     * @return      The number of accesses in the trace
+     */
+    public long run(TraceReader trace) throws IOException, InterruptedException {
+        Thread[] threads = new Thread[this.shards.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(this.shards[i], "set-shard-" + i);
+            threads[i].start();
+        }
+
+        int offsetBitShift = this.cache.getOffsetBitShift();
+        int indexMask = this.cache.getIndexMask();
+        int setBits = Integer.numberOfTrailingZeros(indexMask + 1);
+        int shardCount = this.shards.length;
+        Batch[] batches = new Batch[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            batches[i] = this.shards[i].free.take();
+        }
+
+        TraceBlock block = new TraceBlock(this.lineSizes);
+        long accesses = 0;
+        boolean finished = false;
+        try {
+            int n;
+            while ((n = block.fill(trace)) > 0) {
+                long[] lines = block.getLines(0);
+                int count = block.getLineCount(0);
+                for (int i = 0; i < count; i++) {
+                    long memAddr = lines[i];
+                    int shard = (int) ((memAddr >> offsetBitShift & indexMask) * shardCount >> setBits);
+                    Batch batch = batches[shard];
+                    batch.lines[batch.count++] = memAddr;
+                    if (batch.count == BATCH_SIZE) {
+                        this.shards[shard].queue.put(batch);
+                        batches[shard] = this.shards[shard].free.take();
+                    }
+                }
+                accesses += n;
+            }
+            // handing over what is left, followed by an empty batch to mark the end of the trace
+            for (int i = 0; i < shardCount; i++) {
+                Batch end = batches[i];
+                if (end.count > 0) {
+                    this.shards[i].queue.put(end);
+                    end = this.shards[i].free.take();
+                }
+                this.shards[i].queue.put(end);
+            }
+            finished = true;
+        }
+        finally {
+            for (Thread thread : threads) {
+                if (!finished) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        if (this.failure != null) {
+            throw new IOException("Set shard failed", this.failure);
+        }
+        // merging the per shard counts into the cache
+        for (Shard shard : this.shards) {
+            this.cache.addCounts(shard.hits, shard.misses);
+        }
+        return accesses;
+    }
+
+    /**
+     * A batch of line aligned addresses that all belong to one shard's sets
+     */
+    private static class Batch {
+        final long[] lines = new long[BATCH_SIZE];
+        int count;
+    }
+
+    /**
+     * A thread simulating one contiguous range of sets, the i-th of the shards owning the sets from setCount * i / shardCount on
+     */
+    private class Shard implements Runnable {
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(BATCHES_PER_SHARD);
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(BATCHES_PER_SHARD);
+        private long hits;
+        private long misses;
+
+        Shard() {
+            for (int i = 0; i < BATCHES_PER_SHARD; i++) {
+                this.free.add(new Batch());
+            }
+        }
+
+        public void run() {
+            Cache cache = SetPartitionedSimulation.this.cache;
+            try {
+                while (true) {
+                    Batch batch = this.queue.take();
+                    if (batch.count == 0) {
+                        return;
+                    }
+                    if (SetPartitionedSimulation.this.failure == null) {
+                        try {
+                            for (int i = 0; i < batch.count; i++) {
+                                if (cache.probe(batch.lines[i])) {
+                                    this.hits++;
+                                }
+                                else {
+                                    this.misses++;
+                                }
+                            }
+                        }
+                        catch (RuntimeException | Error e) {
+                            SetPartitionedSimulation.this.failure = e;
+                        }
+                    }
+                    batch.count = 0;
+                    this.free.put(batch);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a trace through one or more hierarchies in a single pass, the trace being parsed once into blocks which are then fed to every hierarchy
+ */
+class Simulation {
+    protected final Hierarchy[] hierarchies;
+    protected final int[] lineSizes;        // The distinct line sizes of the first caches of the hierarchies
+    protected final int[] lineSizeIndex;    // The position in lineSizes of each hierarchy's line size
+    private Path checkpointPath;            // Where checkpoints are written, null for none
+    private long checkpointInterval;        // How many accesses apart checkpoints are written, 0 for only at the end of the run
+    private long start;                     // The number of accesses read from the trace before the run, when carrying on from a checkpoint
+    private long limit = Long.MAX_VALUE;    // The number of accesses into the trace at which the run stops
+    private final Progress progress;        // Reports how the run is going
+
+    /**
+     * Creates a simulation over the given hierarchies
+     * @param hierarchies The hierarchies to feed the trace into
+     */
+    public Simulation(List<Hierarchy> hierarchies) {
+        this.hierarchies = hierarchies.toArray(new Hierarchy[0]);
+        this.lineSizes = this.distinctLineSizes();
+        this.lineSizeIndex = new int[this.hierarchies.length];
+        for (int i = 0; i < this.hierarchies.length; i++) {
+            for (int j = 0; j < this.lineSizes.length; j++) {
+                if (this.lineSizes[j] == this.hierarchies[i].getLineSize()) {
+                    this.lineSizeIndex[i] = j;
+                }
+            }
+        }
+        this.progress = new Progress(this.hierarchies);
+    }
+
+    /**
+     * Finds the line sizes used by the first caches of the hierarchies, so that the trace is only split once per line size
+     * @return The distinct line sizes
+     */
+    private int[] distinctLineSizes() {
+        int[] sizes = new int[this.hierarchies.length];
+        int n = 0;
+        for (Hierarchy hierarchy : this.hierarchies) {
+            boolean seen = false;
+            for (int i = 0; i < n; i++) {
+                seen |= sizes[i] == hierarchy.getLineSize();
+            }
+            if (!seen) {
+                sizes[n++] = hierarchy.getLineSize();
+            }
+        }
+        return Arrays.copyOf(sizes, n);
+    }
+
+    /**
+     * Writes checkpoints of the hierarchies as the run goes, always writing one at the end of the run
+     * @param path      Where to write the checkpoints, each replacing the last
+     * @param interval  How many accesses apart to write them, 0 for only at the end
+     */
+    public void setCheckpoint(Path path, long interval) {
+        this.checkpointPath = path;
+        this.checkpointInterval = interval;
+    }
+
+    /**
+     * Prints a json line of the run's progress every so often, along with the JFR events emitted whenever a recording is running
+     * @param out       Where to print the json lines
+     * @param interval  How many nanoseconds apart to print them
+     */
+    public void setProgress(PrintStream out, long interval) {
+        this.progress.print(out, interval);
+    }
+
+    /**
+     * Tells the run how many accesses were read from the trace before it, when the trace has been moved on to a checkpoint
+     * @param accesses The number of accesses
+     */
+    public void setStart(long accesses) {
+        this.start = accesses;
+    }
+
+    /**
+     * Stops the run once the given number of accesses into the trace have been simulated
+     * @param accesses The number of accesses, counted from the start of the trace
+     */
+    public void setLimit(long accesses) {
+        this.limit = accesses;
+    }
+
+    /**
+     * Reads the whole trace, feeding each block into every hierarchy before moving onto the next block.
+     * Blocks are cut short where a checkpoint is due or the run has to stop, so both fall on the exact access asked for.
+     * Reading and simulating each block are timed apart for the progress reports
+     * @param trace The trace to simulate
+     * @return      The number of accesses simulated
+     */
+    public long run(TraceReader trace) throws IOException, InterruptedException {
+        TraceBlock block = new TraceBlock(this.lineSizes);
+        long position = this.start;
+        long nextCheckpoint = this.checkpointInterval > 0 ? position + this.checkpointInterval : Long.MAX_VALUE;
+        this.progress.start(position);
+        long reading = System.nanoTime();   // When reading the current block started
+        int n;
+        while (position < this.limit && (n = block.fill(trace, (int) Math.min(TraceBlock.CAPACITY, Math.min(this.limit, nextCheckpoint) - position))) > 0) {
+            long parsed = System.nanoTime();
+            for (int i = 0; i < this.hierarchies.length; i++) {
+                this.feed(i, block);
+            }
+            position += n;
+            long simulated = System.nanoTime();
+            this.progress.update(position, parsed - reading, simulated - parsed, simulated);
+            if (position == nextCheckpoint) {
+                Checkpoint.write(this.checkpointPath, this.hierarchies, trace, position);
+                nextCheckpoint += this.checkpointInterval;
+            }
+            reading = System.nanoTime();
+        }
+        if (this.checkpointPath != null && position != nextCheckpoint - this.checkpointInterval) {
+            Checkpoint.write(this.checkpointPath, this.hierarchies, trace, position);
+        }
+        return position - this.start;
+    }
+
+    /**
+     * Feeds a block into one of the hierarchies, using the block's cache lines for that hierarchy's line size
+     * @param i     The position of the hierarchy
+     * @param block The block to feed in
+     */
+    protected void feed(int i, TraceBlock block) {
+        int j = this.lineSizeIndex[i];
+        this.hierarchies[i].simulate(block.getLines(j), block.getKinds(j), block.getLineCount(j));
+    }
+}
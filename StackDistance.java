@@ -0,0 +1,214 @@
+import java.util.Arrays;
+
+/**
+ * Mattson stack distance analysis for fully associative LRU caches. The stack distance of an access is the number of distinct lines
+ * accessed since the last access to the same line, and an LRU cache of C lines hits exactly the accesses with a distance below C,
+ * so one pass over the trace gives the miss ratio of every size at once.
+ * Distances are counted with a Fenwick tree over access positions holding a one at the latest position of every line,
+ * so each access takes O(log n). Positions are renumbered once the tree fills up, so its size follows the number of distinct lines
+ * rather than the length of the trace.
+ */
+class StackDistance {
+    private final LongIntHashMap last = new LongIntHashMap(1 << 16); // The position of the latest access to each line
+    private long[] lineAt;          // The line accessed at each position, positions starting at 1
+    private int[] tree;             // The Fenwick tree, position i covering the i & -i positions ending at i
+    private int now;                // The position of the latest access
+    private long[] histogram = new long[1 << 10];   // The number of accesses with each stack distance
+    private long cold;              // The number of first accesses to a line, which miss in a cache of any size
+    private long accesses;
+
+    /**
+     * Creates an empty analysis
+     */
+    public StackDistance() {
+        this.lineAt = new long[(1 << 20) + 1];
+        this.tree = new int[(1 << 20) + 1];
+    }
+
+    /**
+     * Records an access to a line
+     * @param line The address of the line with its offset shifted away
+     */
+    public void access(long line) {
+        this.accesses++;
+        if (this.now == this.tree.length - 1) {
+            this.compact();
+        }
+        int position = this.last.get(line, 0);
+        this.now++;
+        if (position == 0) {
+            this.cold++;
+        }
+        else {
+            int distance = this.prefix(this.now - 1) - this.prefix(position);
+            if (distance >= this.histogram.length) {
+                this.histogram = Arrays.copyOf(this.histogram, Math.max(this.histogram.length * 2, distance + 1));
+            }
+            this.histogram[distance]++;
+            this.add(position, -1);
+        }
+        this.add(this.now, 1);
+        this.lineAt[this.now] = line;
+        this.last.put(line, this.now);
+    }
+
+    /**
+     * Returns how many ones there are in the tree up to and including a position
+     * @param i The position
+     * @return  The number of lines whose latest access is at or before the position
+     */
+    private int prefix(int i) {
+        int sum = 0;
+        for (; i > 0; i -= i & -i) {
+            sum += this.tree[i];
+        }
+        return sum;
+    }
+
+    private void add(int i, int delta) {
+        for (; i < this.tree.length; i += i & -i) {
+            this.tree[i] += delta;
+        }
+    }
+
+    /**
+     * Renumbers the latest access of every line to the start of the tree, keeping their order, growing the tree if more than half of it is in use
+     */
+    private void compact() {
+        int live = this.last.size();
+        int capacity = this.tree.length - 1;
+        while (live * 2 > capacity) {
+            capacity *= 2;
+        }
+        long[] lineAt = new long[capacity + 1];
+        int q = 0;
+        for (int p = 1; p <= this.now; p++) {
+            long line = this.lineAt[p];
+            if (this.last.get(line, 0) == p) {
+                lineAt[++q] = line;
+                this.last.put(line, q);
+            }
+        }
+        // building the tree in linear time, each position passing its count up to the next position covering it
+        int[] tree = new int[capacity + 1];
+        for (int i = 1; i <= capacity; i++) {
+            if (i <= q) {
+                tree[i]++;
+            }
+            int parent = i + (i & -i);
+            if (parent <= capacity) {
+                tree[parent] += tree[i];
+            }
+        }
+        this.lineAt = lineAt;
+        this.tree = tree;
+        this.now = q;
+    }
+
+    /**
+     * Returns the miss ratio of a fully associative LRU cache
+     * @param lines The number of lines in the cache
+     * @return      The fraction of accesses that miss
+     */
+    public double missRatio(long lines) {
+        long hits = 0;
+        for (int d = 0; d < Math.min(lines, this.histogram.length); d++) {
+            hits += this.histogram[d];
+        }
+        return this.accesses == 0 ? 0 : 1 - (double) hits / this.accesses;
+    }
+
+    /**
+     * Returns the number of distinct lines accessed, beyond which a bigger cache cannot do any better
+     * @return A long
+     */
+    public long getFootprint() {
+        return this.cold;
+    }
+
+    public long getAccesses() {
+        return this.accesses;
+    }
+}
+
+/**
+ * Stack distance analysis for set associative LRU caches with a fixed number of sets.
+ * Each set keeps its own LRU stack, cut off at the largest associativity of interest, so one pass gives the miss ratio of every
+ * associativity up to that for the given number of sets
+ */
+class SetStackDistance {
+    private final int sets;
+    private final int ways;         // The largest associativity analysed
+    private final long[] stacks;    // Each set's stack of lines, most recently used first, at set * ways
+    private final int[] depth;      // The number of lines in each set's stack
+    private final long[] histogram; // The number of accesses found at each depth of their set's stack
+    private long accesses;
+
+    /**
+     * Creates an empty analysis
+     * @param sets  The number of sets, a power of two
+     * @param ways  The largest associativity to analyse
+     */
+    public SetStackDistance(int sets, int ways) {
+        if (sets < 1 || Integer.bitCount(sets) != 1) {
+            throw new IllegalArgumentException("The number of sets must be a power of two, not " + sets);
+        }
+        if (ways < 1 || (long) sets * ways > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(sets + " sets of " + ways + " ways are too many lines to analyse");
+        }
+        this.sets = sets;
+        this.ways = ways;
+        this.stacks = new long[sets * ways];
+        this.depth = new int[sets];
+        this.histogram = new long[ways];
+    }
+
+    /**
+     * Records an access to a line
+     * @param line The address of the line with its offset shifted away
+     */
+    public void access(long line) {
+        this.accesses++;
+        int base = (int) (line & this.sets - 1) * this.ways;
+        int depth = this.depth[base / this.ways];
+        int found = depth;
+        for (int i = 0; i < depth; i++) {
+            if (this.stacks[base + i] == line) {
+                found = i;
+                break;
+            }
+        }
+        if (found < depth) {
+            this.histogram[found]++;
+        }
+        else if (depth < this.ways) {
+            this.depth[base / this.ways]++;
+        }
+        else {
+            found = this.ways - 1;  // the least recently used line drops off the bottom of the stack
+        }
+        System.arraycopy(this.stacks, base, this.stacks, base + 1, found);
+        this.stacks[base] = line;
+    }
+
+    /**
+     * Returns the miss ratio of an LRU cache with this analysis' number of sets
+     * @param ways  The associativity of the cache, at most the largest analysed
+     * @return      The fraction of accesses that miss
+     */
+    public double missRatio(int ways) {
+        long hits = 0;
+        for (int d = 0; d < ways; d++) {
+            hits += this.histogram[d];
+        }
+        return this.accesses == 0 ? 0 : 1 - (double) hits / this.accesses;
+    }
+
+    public int getSets() {
+        return this.sets;
+    }
+
+    public int getWays() {
+        return this.ways;
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A block of consecutive accesses from a trace, along with the same accesses split into line aligned addresses for each line size in use.
+ * Blocks let the trace be parsed once and then replayed into any number of hierarchies.
+ */
+class TraceBlock {
+    static final int CAPACITY = 1 << 14;    // The number of accesses held by a block
+
+    private final long[] addresses = new long[CAPACITY];
+    private final int[] sizes = new int[CAPACITY];
+    private final boolean[] writes = new boolean[CAPACITY];
+    private int count;                      // The number of accesses in the block
+
+    private final int[] lineSizes;          // The distinct line sizes that the block is split into
+    private final long[][] lines;           // The line aligned addresses for each line size
+    private final byte[][] kinds;           // Whether each line aligned address is a Cache.READ or a Cache.WRITE
+    private final int[] lineCounts;         // How many line aligned addresses there are for each line size
+    private final AtomicInteger readers = new AtomicInteger(); // How many workers have yet to finish with the block when it is shared
+
+    /**
+     * Creates an empty block
+     * @param lineSizes The distinct line sizes of the first caches of the hierarchies being fed
+     */
+    public TraceBlock(int[] lineSizes) {
+        this.lineSizes = lineSizes;
+        this.lines = new long[lineSizes.length][CAPACITY * 2];
+        this.kinds = new byte[lineSizes.length][CAPACITY * 2];
+        this.lineCounts = new int[lineSizes.length];
+    }
+
+    /**
+     * Reads the next accesses of the trace into the block and splits them into cache lines
+     * @param trace The trace to read from
+     * @return      The number of accesses read, 0 once the trace has ended
+     */
+    public int fill(TraceReader trace) throws IOException {
+        return this.fill(trace, CAPACITY);
+    }
+
+    /**
+     * Reads at most the given number of accesses of the trace into the block and splits them into cache lines,
+     * so that a run can stop at an exact point in the trace
+     * @param trace The trace to read from
+     * @param max   The most accesses to read, at most CAPACITY
+     * @return      The number of accesses read, 0 once the trace has ended
+     */
+    public int fill(TraceReader trace, int max) throws IOException {
+        int n = 0;
+        while (n < max && trace.next()) {
+            this.addresses[n] = trace.getAddress();
+            this.sizes[n] = trace.getSize();
+            this.writes[n] = trace.isWrite();
+            n++;
+        }
+        this.count = n;
+        for (int i = 0; i < this.lineSizes.length; i++) {
+            this.split(i);
+        }
+        return n;
+    }
+
+    /**
+     * Splits each access in the block into the addresses of the cache lines it touches
+     * @param i The position of the line size in lineSizes
+     */
+    private void split(int i) {
+        int lineSize = this.lineSizes[i];
+        long[] out = this.lines[i];
+        byte[] kinds = this.kinds[i];
+        int n = 0;
+        for (int j = 0; j < this.count; j++) {
+            long memAddr = this.addresses[j];
+            long endAddr = memAddr + this.sizes[j];
+            memAddr = memAddr - memAddr % lineSize;
+            int needed = (int) ((endAddr - memAddr + lineSize - 1) / lineSize);
+            if (n + needed > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, n + needed));
+                kinds = Arrays.copyOf(kinds, out.length);
+                this.lines[i] = out;
+                this.kinds[i] = kinds;
+            }
+            byte kind = this.writes[j] ? Cache.WRITE : Cache.READ;
+            // Goes through each cache line that this memory block would use in the cache
+            while (memAddr < endAddr) {
+                kinds[n] = kind;
+                out[n++] = memAddr;
+                memAddr += lineSize;
+            }
+        }
+        this.lineCounts[i] = n;
+    }
+
+    /**
+     * Returns the number of accesses in the block
+     * @return An integer
+     */
+    public int getCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the line aligned addresses for the line size at the given position
+     * @param i The position of the line size
+     * @return  An array of which the first getLineCount(i) entries are in use
+     */
+    public long[] getLines(int i) {
+        return this.lines[i];
+    }
+
+    /**
+     * Returns whether each line aligned address for the line size at the given position is a read or a write,
+     * a write touching several cache lines writing each of them
+     * @param i The position of the line size
+     * @return  An array of Cache.READ and Cache.WRITE of which the first getLineCount(i) entries are in use
+     */
+    public byte[] getKinds(int i) {
+        return this.kinds[i];
+    }
+
+    /**
+     * Returns how many line aligned addresses there are for the line size at the given position
+     * @param i The position of the line size
+     * @return  An integer
+     */
+    public int getLineCount(int i) {
+        return this.lineCounts[i];
+    }
+
+    /**
+     * Marks the block as being shared by the given number of workers
+     * @param count The number of workers that will read the block
+     */
+    public void retain(int count) {
+        this.readers.set(count);
+    }
+
+    /**
+     * Called by a worker once it has finished with the block
+     * @return Whether this was the last worker, in which case the block can be refilled
+     */
+    public boolean release() {
+        return this.readers.decrementAndGet() == 0;
+    }
+}
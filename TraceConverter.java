@@ -0,0 +1,44 @@
+/**
+ * Converts a text trace into the binary trace format, so that later runs over the same trace do not pay for parsing the text again
+ */
+public class TraceConverter {
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java TraceConverter <Path to Trace File> <Path to Binary Trace>");
+            return;
+        }
+        try {
+            boolean cores = hasCores(args[0]);
+            try (TraceReader trace = TraceReader.open(args[0]);
+                 BinaryTraceWriter out = new BinaryTraceWriter(args[1], cores)) {
+                while (trace.next()) {
+                    out.write(trace.getAddress(), trace.getSize(), trace.isWrite(), trace.getCore());
+                }
+                System.err.println("Wrote " + out.getCount() + " accesses to " + args[1] + (cores ? " with their cores" : ""));
+            }
+        }
+        catch (Exception e) {
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * Checks whether any access of a trace is made by a core other than 0, in which case the binary trace keeps the core of
+     * every access. A streamed trace cannot be read twice, so its cores are always kept
+     * @param path  The path of the trace
+     * @return      Whether to keep the cores
+     */
+    private static boolean hasCores(String path) throws Exception {
+        if (TraceReader.isStream(path)) {
+            return true;
+        }
+        try (TraceReader trace = TraceReader.open(path)) {
+            while (trace.next()) {
+                if (trace.getCore() != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
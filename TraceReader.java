@@ -0,0 +1,425 @@
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Abstract class for trace readers, a reader hands out one memory access of the trace at a time
+ */
+abstract class TraceReader implements AutoCloseable {
+    static final String STDIN = "-";    // The path standing for the standard input
+
+    protected long address; // The memory address of the current access
+    protected int size;     // The number of bytes read or written by the current access
+    protected boolean write; // Whether the current access is a write rather than a read
+    protected int core;     // The core making the current access, 0 unless the trace has a core column
+
+    /**
+     * Opens the trace file at the given path with the appropriate reader for its format
+     * @param path  The path of the trace file, or - for the standard input
+     * @return      A reader positioned before the first access of the trace
+     */
+    public static TraceReader open(String path) throws IOException {
+        if (isStream(path)) {
+            // a pipe can only be read once, so the format is told from the first bytes, which are handed on to the reader
+            ReadableByteChannel channel = Channels.newChannel(path.equals(STDIN) ? System.in : new FileInputStream(path));
+            ByteBuffer head = ByteBuffer.allocate(4);
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+                // reading until the magic number is complete or the stream ends
+            }
+            head.flip();
+            if (head.remaining() == 4 && head.getInt(0) == BinaryTraceFormat.MAGIC) {
+                return new BinaryTraceReader(channel, head, path);
+            }
+            if (head.remaining() >= 2 && (head.getShort(0) & 0xFFFF) == GzipTraceFormat.MAGIC) {
+                InputStream rest = Channels.newInputStream(channel);
+                return GzipTraceFormat.open(new SequenceInputStream(new ByteArrayInputStream(head.array(), 0, head.remaining()), rest), path);
+            }
+            return new MappedTraceReader(channel, head);
+        }
+        if (GzipTraceFormat.isGzip(path)) {
+            return GzipTraceFormat.open(new FileInputStream(path), path);
+        }
+        if (BinaryTraceFormat.isBinaryTrace(path)) {
+            return new BinaryTraceReader(path);
+        }
+        return new MappedTraceReader(path);
+    }
+
+    /**
+     * Returns whether the trace at the given path has to be streamed, being the standard input, a named pipe or a device,
+     * rather than a regular file that can be mapped, checkpointed and identified by its size and modification time
+     * @param path  The path of the trace
+     * @return      A boolean
+     */
+    public static boolean isStream(String path) {
+        if (path.equals(STDIN)) {
+            return true;
+        }
+        Path file = Paths.get(path);
+        // a missing path is left to fail as a missing file rather than being taken for a pipe
+        return Files.exists(file) && !Files.isRegularFile(file) && !Files.isDirectory(file);
+    }
+
+    /**
+     * Returns the memory address of the current access
+     * @return A long
+     */
+    public long getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Returns the number of bytes accessed by the current access
+     * @return An integer
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Returns whether the current access is a write, taken from column 2 of the text format
+     * @return A boolean
+     */
+    public boolean isWrite() {
+        return this.write;
+    }
+
+    /**
+     * Returns the core making the current access, taken from the optional decimal column after the size in the text format
+     * @return An integer, 0 if the trace has no core column
+     */
+    public int getCore() {
+        return this.core;
+    }
+
+    /**
+     * Returns where the next access starts in the trace, for a checkpoint to hand back to seek
+     * @return The offset in bytes
+     */
+    public long getOffset() throws IOException {
+        throw new IOException("This trace cannot be checkpointed");
+    }
+
+    /**
+     * Returns the size of the trace file, which a checkpoint keeps to check that it is resumed with the same trace
+     * @return The size in bytes
+     */
+    public long length() throws IOException {
+        throw new IOException("This trace cannot be checkpointed");
+    }
+
+    /**
+     * Moves the reader to an offset returned by getOffset, as when resuming from a checkpoint
+     * @param offset    Where the next access starts
+     * @param address   The address of the access read just before the offset
+     * @param accesses  The number of accesses before the offset
+     */
+    public void seek(long offset, long address, long accesses) throws IOException {
+        throw new IOException("This trace cannot be resumed from a checkpoint");
+    }
+
+    /**
+     * Advances the reader onto the next access in the trace
+     * @return Whether there was another access, false once the end of the trace has been reached
+     */
+    abstract boolean next() throws IOException;
+
+    /**
+     * Releases the file held by the reader
+     */
+    public abstract void close() throws IOException;
+}
+
+/**
+ * Reads the text trace format, one access per line with space separated fields, the hex address in column 1 and the size in column 3,
+ * optionally followed by the core making the access in column 4 for multi-core traces.
+ * The file is memory mapped a chunk at a time and the fields are parsed straight from the mapped bytes, so nothing is allocated per access.
+ * A streamed trace is read into a direct buffer instead, each refill keeping the line cut off by the end of the last one
+ */
+class MappedTraceReader extends TraceReader {
+    private static final long CHUNK_SIZE = 1L << 26;   // How many bytes of the file are mapped at once
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+    private final FileChannel channel;
+    private final ReadableByteChannel stream;   // The stream being read instead of a file, null for a file
+    private final long fileSize;
+    private ByteBuffer buffer;          // The currently mapped chunk of the file, or the bytes read from the stream
+    private long chunkStart;            // The offset in the file at which the current chunk starts
+    private int position;               // The position in the current chunk of the next line to parse
+    private int limit;                  // The number of bytes in the current chunk
+    private boolean lastChunk;          // Whether the current chunk runs up to the end of the file
+
+    /**
+     * Opens the given text trace and maps in its first chunk
+     * @param path  The path of the trace file
+     */
+    public MappedTraceReader(String path) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        this.stream = null;
+        this.fileSize = this.channel.size();
+        this.chunkStart = 0;
+        this.map();
+    }
+
+    /**
+     * Reads a text trace from a stream, such as a pipe
+     * @param stream    The stream
+     * @param head      Bytes already read from the start of the stream
+     */
+    public MappedTraceReader(ReadableByteChannel stream, ByteBuffer head) throws IOException {
+        this.channel = null;
+        this.stream = stream;
+        this.fileSize = -1;
+        this.buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        this.buffer.put(head);
+        this.limit = this.buffer.position();
+        this.map();
+    }
+
+    /**
+     * Creates a reader for chunks of whole lines handed to it by parse, as when the lines are cut from a compressed trace
+     */
+    public MappedTraceReader() {
+        this.channel = null;
+        this.stream = null;
+        this.fileSize = -1;
+    }
+
+    /**
+     * Moves the reader onto a chunk of whole lines, next then going through the accesses of the chunk
+     * @param lines The chunk, from its start up to its limit
+     * @param start Where the chunk starts in the trace, for errors
+     */
+    public void parse(ByteBuffer lines, long start) {
+        this.buffer = lines;
+        this.chunkStart = start;
+        this.position = 0;
+        this.limit = lines.limit();
+        this.lastChunk = true;
+    }
+
+    /**
+     * Maps the chunk of the file starting at chunkStart, or for a stream moves the bytes from the position on to the front
+     * of the buffer and fills the rest from the stream
+     */
+    private void map() throws IOException {
+        if (this.stream != null) {
+            this.buffer.limit(this.limit).position(this.position);
+            this.buffer.compact();
+            while (this.buffer.hasRemaining()) {
+                if (this.stream.read(this.buffer) < 0) {
+                    this.lastChunk = true;
+                    break;
+                }
+            }
+            this.buffer.flip();
+            this.position = 0;
+            this.limit = this.buffer.limit();
+            return;
+        }
+        long length = Math.min(CHUNK_SIZE, this.fileSize - this.chunkStart);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, this.chunkStart, length);
+        this.position = 0;
+        this.limit = (int) length;
+        this.lastChunk = this.chunkStart + length >= this.fileSize;
+    }
+
+    /**
+     * Parses the next line of the trace into the address and size of the current access, remapping when a line runs off the end of the chunk
+     * @return Whether there was another access
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            // skipping over any blank lines before the next access
+            while (this.position < this.limit && isNewline(this.buffer.get(this.position))) {
+                this.position++;
+            }
+            if (this.position < this.limit) {
+                int end = this.parseLine(this.position);
+                if (end >= 0) {
+                    this.position = end;
+                    return true;
+                }
+            }
+            if (this.lastChunk) {
+                return false;
+            }
+            if (this.position == 0) {
+                throw new IOException("Trace line at byte " + this.chunkStart + " is longer than " + this.buffer.capacity() + " bytes");
+            }
+            // the line was cut off by the end of the chunk, so the next chunk starts where the line does
+            this.chunkStart += this.position;
+            this.map();
+        }
+    }
+
+    /**
+     * Parses the line starting at the given position, skipping columns 0 and 2
+     * @param p The position of the first byte of the line
+     * @return  The position just after the line, or -1 if the line is cut off by the end of the chunk
+     */
+    private int parseLine(int p) throws IOException {
+        ByteBuffer buf = this.buffer;
+        int limit = this.limit;
+        p = this.skipField(p);
+        if (p < 0) {
+            return -1;
+        }
+
+        long addr = 0;
+        int start = p;
+        byte b;
+        while (p < limit && (b = buf.get(p)) != ' ' && b != '\t') {
+            int digit;
+            if (b >= '0' && b <= '9') {
+                digit = b - '0';
+            }
+            else if (b >= 'a' && b <= 'f') {
+                digit = b - 'a' + 10;
+            }
+            else if (b >= 'A' && b <= 'F') {
+                digit = b - 'A' + 10;
+            }
+            else {
+                throw this.malformed(start);
+            }
+            if (addr >>> 59 != 0) {
+                throw this.malformed(start);    // the address would not fit in a signed long, as Long.parseLong would have rejected
+            }
+            addr = addr << 4 | digit;
+            p++;
+        }
+        if (p >= limit && !this.lastChunk) {
+            return -1;
+        }
+        if (p == start || p >= limit) {
+            throw this.malformed(start);
+        }
+        p = this.skipSpaces(p);
+        boolean write = p < limit && ((b = buf.get(p)) == 'W' || b == 'w');
+        p = this.skipField(p);
+        if (p < 0) {
+            return -1;
+        }
+
+        int size = 0;
+        start = p;
+        while (p < limit && (b = buf.get(p)) >= '0' && b <= '9') {
+            size = size * 10 + (b - '0');
+            p++;
+        }
+        if (p >= limit && !this.lastChunk) {
+            return -1;
+        }
+        if (p == start) {
+            throw this.malformed(start);
+        }
+        // an optional core column follows the size
+        while (p < limit && ((b = buf.get(p)) == ' ' || b == '\t')) {
+            p++;
+        }
+        int core = 0;
+        while (p < limit && (b = buf.get(p)) >= '0' && b <= '9') {
+            core = core * 10 + (b - '0');
+            p++;
+        }
+        // ignoring anything else on the line
+        while (p < limit && buf.get(p) != '\n') {
+            p++;
+        }
+        if (p >= limit && !this.lastChunk) {
+            return -1;
+        }
+
+        this.address = addr;
+        this.size = size;
+        this.write = write;
+        this.core = core;
+        return p < limit ? p + 1 : p;
+    }
+
+    /**
+     * Skips over a field and the spaces following it
+     * @param p The position of the first byte of the field
+     * @return  The position of the first byte of the next field, or -1 if the line is cut off by the end of the chunk
+     */
+    private int skipField(int p) throws IOException {
+        int start = p;
+        byte b;
+        while (p < this.limit && (b = this.buffer.get(p)) != ' ' && b != '\t') {
+            if (isNewline(b)) {
+                throw this.malformed(start);
+            }
+            p++;
+        }
+        if (p >= this.limit) {
+            if (this.lastChunk) {
+                throw this.malformed(start);
+            }
+            return -1;
+        }
+        return this.skipSpaces(p);
+    }
+
+    /**
+     * Skips over the separator between two fields
+     * @param p The position of the first byte of the separator
+     * @return  The position of the first byte after the separator
+     */
+    private int skipSpaces(int p) {
+        byte b;
+        while (p < this.limit && ((b = this.buffer.get(p)) == ' ' || b == '\t')) {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isNewline(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    public long getOffset() throws IOException {
+        if (this.stream != null) {
+            return super.getOffset();
+        }
+        return this.chunkStart + this.position;
+    }
+
+    public long length() throws IOException {
+        if (this.stream != null) {
+            return super.length();
+        }
+        return this.fileSize;
+    }
+
+    public void seek(long offset, long address, long accesses) throws IOException {
+        if (this.stream != null) {
+            super.seek(offset, address, accesses);
+        }
+        this.chunkStart = offset;
+        this.map();
+        this.address = address;
+    }
+
+    private IOException malformed(int p) {
+        return new IOException("Malformed trace line near byte " + (this.chunkStart + p));
+    }
+
+    public void close() throws IOException {
+        if (this.stream != null) {
+            this.stream.close();
+        }
+        else if (this.channel != null) {
+            this.channel.close();
+        }
+    }
+}
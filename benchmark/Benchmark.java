@@ -0,0 +1,242 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for the simulator, covering trace parsing, checkCache for each kind of cache and replacement policy,
+ * and whole hierarchies fed with a synthetic trace. Each benchmark is warmed up before being measured and is reported in
+ * nanoseconds per operation along with the bytes allocated per operation and the resulting allocation rate.
+ * Compiled alongside the simulator's sources, see the README.
+ */
+public class Benchmark {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int TRACE_LENGTH = 1 << 20;   // The number of accesses in the synthetic traces
+    private static final long SEED = 42;
+
+    static volatile long sink;  // Results are written here so that the JIT cannot drop the work that produced them
+
+    /**
+     * A single benchmark, of which each call runs one iteration
+     */
+    interface Body {
+        /**
+         * Runs one iteration of the benchmark
+         * @return The number of operations performed
+         */
+        long run() throws Exception;
+    }
+
+    private static final class Case {
+        final String name;
+        final Body body;
+
+        Case(String name, Body body) {
+            this.name = name;
+            this.body = body;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        long[] lines = syntheticLines(TRACE_LENGTH, 64);
+        File textTrace = writeTextTrace(TRACE_LENGTH);
+        File binaryTrace = writeBinaryTrace(textTrace);
+
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("parse.text", () -> readAll(textTrace)));
+        cases.add(new Case("parse.binary", () -> readAll(binaryTrace)));
+        cases.add(new Case("block.split", () -> splitAll(textTrace)));
+
+        cases.add(new Case("checkCache.direct", checkCache(new DirectMapped("L1", 32768, 64), lines)));
+        for (String policy : new String[] {"rr", "lru", "lfu", "plru", "srrip", "drrip", "random"}) {
+            for (int ways : new int[] {2, 4, 8, 16}) {
+                cases.add(new Case("checkCache." + policy + "." + ways + "way", checkCache(new NWayAssociative("L1", 32768, 64, ways, policy), lines)));
+            }
+            cases.add(new Case("checkCache." + policy + ".full", checkCache(new NWayAssociative("L1", 32768, 64, 32768 / 64, policy), lines)));
+        }
+
+        cases.add(new Case("hierarchy.l1", hierarchy(lines,
+                cache("L1", 32768, "8way", "lru"))));
+        cases.add(new Case("hierarchy.l1l2", hierarchy(lines,
+                cache("L1", 32768, "8way", "lru"), cache("L2", 262144, "8way", "lru"))));
+        cases.add(new Case("hierarchy.l1l2l3", hierarchy(lines,
+                cache("L1", 32768, "8way", "lru"), cache("L2", 262144, "8way", "lru"), cache("L3", 8388608, "16way", "lru"))));
+
+        System.out.printf("%-28s %12s %12s %14s%n", "Benchmark", "ns/op", "B/op", "alloc MB/s");
+        for (Case c : cases) {
+            if (c.name.contains(filter)) {
+                measure(c);
+            }
+        }
+    }
+
+    /**
+     * Warms up and then measures a benchmark, printing its results
+     * @param c The benchmark to run
+     */
+    private static void measure(Case c) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            c.body.run();
+        }
+        long ops = 0;
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            ops += c.body.run();
+            nanos += System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        double bytesPerOp = (double) allocated / ops;
+        double megabytesPerSecond = allocated / (nanos / 1e9) / (1 << 20);
+        System.out.printf("%-28s %12.3f %12.3f %14.3f%n", c.name, (double) nanos / ops, bytesPerOp, megabytesPerSecond);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread so far
+     * @return A long
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Feeds every address into a single cache, an operation being one call to checkCache
+     * @param cache The cache to benchmark, kept warm between iterations
+     * @param lines The line aligned addresses to feed in
+     * @return      The benchmark body
+     */
+    private static Body checkCache(Cache cache, long[] lines) {
+        return () -> {
+            for (long line : lines) {
+                cache.checkCache(line);
+            }
+            sink = cache.getHits();
+            return lines.length;
+        };
+    }
+
+    /**
+     * Feeds every address into a hierarchy, an operation being one line aligned access to the first level
+     * @param lines     The line aligned addresses to feed in
+     * @param caches    The configs of the levels of the hierarchy
+     * @return          The benchmark body
+     */
+    private static Body hierarchy(long[] lines, CacheConfig... caches) {
+        CacheList config = new CacheList();
+        config.setCaches(Arrays.asList(caches));
+        Hierarchy hierarchy = new Hierarchy("benchmark", config);
+        return () -> {
+            hierarchy.simulate(lines, lines.length);
+            sink = hierarchy.getCaches()[0].getHits();
+            return lines.length;
+        };
+    }
+
+    private static CacheConfig cache(String name, int size, String kind, String policy) {
+        CacheConfig config = new CacheConfig();
+        config.setName(name);
+        config.setSize(size);
+        config.setLine_size(64);
+        config.setKind(kind);
+        config.setReplacement_policy(policy);
+        return config;
+    }
+
+    /**
+     * Reads every access of a trace, an operation being one access
+     * @param trace The trace file to read
+     * @return      The number of accesses read
+     */
+    private static long readAll(File trace) throws IOException {
+        long count = 0;
+        long sum = 0;
+        try (TraceReader reader = TraceReader.open(trace.getPath())) {
+            while (reader.next()) {
+                sum += reader.getAddress() + reader.getSize();
+                count++;
+            }
+        }
+        sink = sum;
+        return count;
+    }
+
+    /**
+     * Reads a trace into blocks split into 64 byte lines, an operation being one access
+     * @param trace The trace file to read
+     * @return      The number of accesses read
+     */
+    private static long splitAll(File trace) throws IOException {
+        long count = 0;
+        TraceBlock block = new TraceBlock(new int[] {64});
+        try (TraceReader reader = TraceReader.open(trace.getPath())) {
+            int n;
+            while ((n = block.fill(reader)) > 0) {
+                count += n;
+            }
+        }
+        sink = count;
+        return count;
+    }
+
+    /**
+     * Generates line aligned addresses that are half from a small hot region, a quarter from a sequential stream and a quarter from a large random region
+     * @param count     The number of addresses
+     * @param lineSize  The line size to align to
+     * @return          The addresses
+     */
+    static long[] syntheticLines(int count, int lineSize) {
+        Random random = new Random(SEED);
+        long[] lines = new long[count];
+        long stream = 0x555555a00000L;
+        for (int i = 0; i < count; i++) {
+            long address;
+            int r = random.nextInt(4);
+            if (r < 2) {
+                address = 0x7fff0000L + random.nextInt(1 << 14);
+            }
+            else if (r == 2) {
+                address = stream;
+                stream += 8;
+            }
+            else {
+                address = 0x600000000000L + random.nextInt(1 << 26);
+            }
+            lines[i] = address - address % lineSize;
+        }
+        return lines;
+    }
+
+    private static File writeTextTrace(int count) throws IOException {
+        File file = File.createTempFile("benchmark", ".out");
+        file.deleteOnExit();
+        long[] addresses = syntheticLines(count, 1);
+        Random random = new Random(SEED);
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            for (long address : addresses) {
+                out.write(String.format("%016x %016x %s %d%n", 0x555555554000L + random.nextInt(4096), address, random.nextInt(4) == 0 ? "W" : "R", 1 << random.nextInt(5)));
+            }
+        }
+        return file;
+    }
+
+    private static File writeBinaryTrace(File textTrace) throws IOException {
+        File file = File.createTempFile("benchmark", ".bin");
+        file.deleteOnExit();
+        try (TraceReader in = TraceReader.open(textTrace.getPath());
+             BinaryTraceWriter out = new BinaryTraceWriter(file.getPath(), false)) {
+            while (in.next()) {
+                out.write(in.getAddress(), in.getSize(), in.isWrite(), in.getCore());
+            }
+        }
+        return file;
+    }
+}